@@ -0,0 +1,67 @@
+/*
+ *  Copyright (c) 2021 Freya Arbjerg and contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ *
+ */
+
+package lavalink.server.config
+
+import org.slf4j.LoggerFactory
+import org.springframework.beans.factory.DisposableBean
+import org.springframework.context.annotation.Configuration
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor
+import org.springframework.web.servlet.config.annotation.AsyncSupportConfigurer
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer
+
+/**
+ * Provides the threads streamed REST responses are written on.
+ *
+ * Spring Boot only sets up a task executor for these if there is no other executor bean, and the scheduler is one,
+ * so without this every streamed response would start a new thread.
+ */
+@Configuration
+class AsyncRequestConfiguration(serverConfig: ServerConfig) : WebMvcConfigurer, DisposableBean {
+
+    private val log = LoggerFactory.getLogger(AsyncRequestConfiguration::class.java)
+
+    private val executor = ThreadPoolTaskExecutor().apply {
+        var threads = serverConfig.restWriterThreads
+        if (threads <= 0) {
+            threads = Runtime.getRuntime().availableProcessors()
+        }
+
+        corePoolSize = threads
+        maxPoolSize = threads
+        setAllowCoreThreadTimeOut(true)
+        setThreadNamePrefix("lavalink-rest-writer-")
+        setDaemon(true)
+        initialize()
+
+        log.info("Writing streamed REST responses with up to $threads threads")
+    }
+
+    override fun configureAsyncSupport(configurer: AsyncSupportConfigurer) {
+        configurer.setTaskExecutor(executor)
+    }
+
+    override fun destroy() {
+        executor.shutdown()
+    }
+}
@@ -37,6 +37,10 @@ import com.sedmelluq.lava.extensions.youtuberotator.YoutubeIpRotatorSetup
 import com.sedmelluq.lava.extensions.youtuberotator.planner.*
 import com.sedmelluq.lava.extensions.youtuberotator.tools.ip.Ipv4Block
 import com.sedmelluq.lava.extensions.youtuberotator.tools.ip.Ipv6Block
+import lavalink.server.player.AdaptiveFrameBufferFactory
+import lavalink.server.player.DirectFramePool
+import lavalink.server.player.HttpTeeRequestExecutor
+import lavalink.server.player.OffHeapFrameBufferFactory
 import org.slf4j.LoggerFactory
 import org.springframework.context.annotation.Bean
 import org.springframework.context.annotation.Configuration
@@ -106,6 +110,16 @@ class AudioPlayerConfiguration {
         if (sources.http) audioPlayerManager.registerSourceManager(HttpAudioSourceManager())
         if (sources.local) audioPlayerManager.registerSourceManager(LocalAudioSourceManager())
 
+        if (lavaplayerProps.httpTee.enabled) {
+            val tee = lavaplayerProps.httpTee
+            log.info(
+                "Sharing concurrent downloads of up to ${tee.maxBytes} bytes, " +
+                    "${tee.maxTotalBytes} bytes and ${tee.maxDownloaders} downloads at once"
+            )
+            val teeExecutor = HttpTeeRequestExecutor(tee.maxBytes, tee.maxTotalBytes, tee.maxDownloaders)
+            audioPlayerManager.setHttpBuilderConfigurator { it.setRequestExecutor(teeExecutor) }
+        }
+
         audioPlayerManager.configuration.isFilterHotSwapEnabled = true
         audioPlayerManager.frameBufferDuration = lavaplayerProps.frameBufferDuration
         if (lavaplayerProps.nonAllocating) {
@@ -113,6 +127,26 @@ class AudioPlayerConfiguration {
             audioPlayerManager.configuration.setFrameBufferFactory(::NonAllocatingAudioFrameBuffer)
         }
 
+        val offHeap = lavaplayerProps.offHeapFrameBuffer
+        if (offHeap.enabled) {
+            log.info("Using off-heap frame buffers with up to ${offHeap.maxBytes} bytes of direct memory.")
+            audioPlayerManager.configuration.frameBufferFactory = OffHeapFrameBufferFactory(
+                DirectFramePool(offHeap.maxBytes),
+                audioPlayerManager.configuration.frameBufferFactory
+            )
+        }
+
+        val adaptive = lavaplayerProps.adaptiveFrameBuffer
+        if (adaptive.enabled) {
+            log.info("Adapting frame buffer durations per player between ${adaptive.minDuration} and ${adaptive.maxDuration} ms")
+            audioPlayerManager.configuration.frameBufferFactory = AdaptiveFrameBufferFactory(
+                audioPlayerManager.configuration.frameBufferFactory,
+                lavaplayerProps.frameBufferDuration,
+                adaptive.minDuration,
+                adaptive.maxDuration
+            )
+        }
+
         return audioPlayerManager
     }
 
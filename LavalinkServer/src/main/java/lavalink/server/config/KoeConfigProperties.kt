@@ -32,5 +32,10 @@ class KoeConfigProperties {
     var useEpoll: Boolean = true
     var highPacketPriority: Boolean = true
     var bufferDurationMs: Int? = null
+    var javaFramePoller: Boolean = false
+    var javaFramePollerConnectionsPerThread: Int = 64
+    var sendShards: Int = 1
+    var sendThreadsPerShard: Int = 0
+    var eventLoopThreads: Int = 0
     var byteBufAllocator: String = "pooled"
 }
@@ -30,6 +30,9 @@ import io.netty.channel.epoll.Epoll
 import io.netty.channel.epoll.EpollDatagramChannel
 import io.netty.channel.epoll.EpollEventLoopGroup
 import io.netty.channel.epoll.EpollSocketChannel
+import io.netty.channel.nio.NioEventLoopGroup
+import lavalink.server.io.poller.JavaFramePollerFactory
+import lavalink.server.io.poller.ShardedFramePollerFactory
 import moe.kyokobot.koe.KoeOptions
 import moe.kyokobot.koe.codec.udpqueue.UdpQueueFramePollerFactory
 import org.slf4j.Logger
@@ -55,16 +58,32 @@ class KoeConfiguration(val configProperties: KoeConfigProperties) {
         val nasSupported = os.contains("linux", ignoreCase = true)
             && arch.equals("amd64", ignoreCase = true)
 
-        if (nasSupported) {
-            log.info("Enabling JDA-NAS")
+        var bufferSize = configProperties.bufferDurationMs ?: UdpQueueFramePollerFactory.DEFAULT_BUFFER_DURATION
+        if (bufferSize <= 0) {
+            log.warn("Buffer size of ${bufferSize}ms is illegal. Defaulting to ${UdpQueueFramePollerFactory.DEFAULT_BUFFER_DURATION}")
+            bufferSize = UdpQueueFramePollerFactory.DEFAULT_BUFFER_DURATION
+        }
 
-            var bufferSize = configProperties.bufferDurationMs ?: UdpQueueFramePollerFactory.DEFAULT_BUFFER_DURATION
-            if (bufferSize <= 0) {
-                log.warn("Buffer size of ${bufferSize}ms is illegal. Defaulting to ${UdpQueueFramePollerFactory.DEFAULT_BUFFER_DURATION}")
-                bufferSize = UdpQueueFramePollerFactory.DEFAULT_BUFFER_DURATION
-            }
+        val shards = configProperties.sendShards.coerceAtLeast(1)
+        var threadsPerShard = configProperties.sendThreadsPerShard
+        if (threadsPerShard <= 0) {
+            threadsPerShard = (Runtime.getRuntime().availableProcessors() / shards).coerceAtLeast(1)
+        }
 
-            setFramePollerFactory(UdpQueueFramePollerFactory(bufferSize, Runtime.getRuntime().availableProcessors()))
+        if (nasSupported) {
+            log.info("Enabling JDA-NAS with $shards send shards of $threadsPerShard threads")
+            setFramePollerFactory(ShardedFramePollerFactory(List(shards) {
+                UdpQueueFramePollerFactory(bufferSize, threadsPerShard)
+            }))
+        } else if (configProperties.javaFramePoller) {
+            log.info(
+                "Native audio sending is not supported on this system, using the Java frame poller " +
+                    "with $shards send shards of up to $threadsPerShard threads"
+            )
+            val connectionsPerThread = configProperties.javaFramePollerConnectionsPerThread.coerceAtLeast(1)
+            setFramePollerFactory(ShardedFramePollerFactory(List(shards) { shard ->
+                JavaFramePollerFactory(bufferSize, connectionsPerThread, threadsPerShard, "lavalink-frame-sender-$shard")
+            }))
         } else {
             log.warn(
                 "This system and architecture appears to not support native audio sending! "
@@ -73,11 +92,19 @@ class KoeConfiguration(val configProperties: KoeConfigProperties) {
         }
 
         /* Epoll Transport */
+        /* 0 lets Netty pick its default */
+        val eventLoopThreads = configProperties.eventLoopThreads.coerceAtLeast(0)
         if (configProperties.useEpoll && Epoll.isAvailable()) {
             log.info("Using Epoll Transport.")
-            setEventLoopGroup(EpollEventLoopGroup())
+            setEventLoopGroup(EpollEventLoopGroup(eventLoopThreads))
             setDatagramChannelClass(EpollDatagramChannel::class.java)
             setSocketChannelClass(EpollSocketChannel::class.java)
+        } else if (eventLoopThreads > 0) {
+            setEventLoopGroup(NioEventLoopGroup(eventLoopThreads))
+        }
+
+        if (eventLoopThreads > 0) {
+            log.info("Using $eventLoopThreads event loop threads")
         }
 
         /* Byte Buf Allocator */
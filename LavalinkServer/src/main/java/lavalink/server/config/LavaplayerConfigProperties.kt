@@ -36,4 +36,7 @@ class LavaplayerConfigProperties {
     var ratelimit: RateLimitConfig? = null
     var nonAllocating: Boolean = false
     var frameBufferDuration: Int = 5000
+    var offHeapFrameBuffer = OffHeapFrameBufferConfig()
+    var adaptiveFrameBuffer = AdaptiveFrameBufferConfig()
+    var httpTee = HttpTeeConfig()
 }
@@ -0,0 +1,64 @@
+/*
+ *  Copyright (c) 2021 Freya Arbjerg and contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ *
+ */
+
+package lavalink.server.config
+
+import org.slf4j.LoggerFactory
+import org.springframework.context.annotation.Bean
+import org.springframework.context.annotation.Configuration
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.ScheduledThreadPoolExecutor
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Provides the process-wide scheduler that backs player updates, stats and resume timeouts of every session,
+ * so the amount of timer threads does not grow with the amount of connected clients.
+ */
+@Configuration
+class SchedulerConfiguration {
+
+    private val log = LoggerFactory.getLogger(SchedulerConfiguration::class.java)
+
+    @Bean(destroyMethod = "shutdownNow")
+    fun scheduler(serverConfig: ServerConfig): ScheduledExecutorService {
+        var threads = serverConfig.schedulerThreads
+        if (threads <= 0) {
+            log.warn("Scheduler thread count of $threads is illegal. Defaulting to 2")
+            threads = 2
+        }
+
+        val counter = AtomicInteger()
+        val scheduler = ScheduledThreadPoolExecutor(threads) { r ->
+            val thread = Thread(r)
+            thread.name = "lavalink-scheduler-${counter.incrementAndGet()}"
+            thread.isDaemon = true
+            thread
+        }
+
+        /* cancelled player updates and resume timeouts should not linger in the queue */
+        scheduler.removeOnCancelPolicy = true
+
+        log.info("Using a shared scheduler with $threads threads")
+        return scheduler
+    }
+}
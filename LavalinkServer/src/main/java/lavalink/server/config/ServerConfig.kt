@@ -32,5 +32,19 @@ class ServerConfig {
     @get:Deprecated("use {@link SentryConfigProperties} instead.")
     var sentryDsn = ""
     var playerUpdateInterval: Int = 5
+    var playerUpdateBatching: Boolean = false
+    var playerUpdateDeltas: Boolean = false
+    var playerUpdateDriftThreshold: Long = 1000
+    var silenceSuppression: Boolean = false
+    var sharedLiveStreams: Boolean = false
+    var sharedLiveStreamBufferFrames: Int = 150
+    var schedulerThreads: Int = 2
+    var opWorkerThreads: Int = 0
+    var restWriterThreads: Int = 0
+    var sendQueue = SendQueueConfig()
+    var resumeBuffer = ResumeBufferConfig()
+    var websocketCompression = WebsocketCompressionConfig()
+    var loadResultCache = LoadResultCacheConfig()
+    var trackDecodeCacheSize: Int = 0
     var password: String? = ""
 }
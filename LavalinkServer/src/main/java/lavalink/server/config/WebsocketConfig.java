@@ -23,9 +23,16 @@
 
 package lavalink.server.config;
 
+import io.undertow.websockets.jsr.WebSocketDeploymentInfo;
 import lavalink.server.io.HandshakeInterceptorImpl;
 import lavalink.server.io.SocketServer;
+import lavalink.server.io.ThresholdDeflateHandshake;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.web.embedded.undertow.UndertowServletWebServerFactory;
+import org.springframework.boot.web.server.WebServerFactoryCustomizer;
+import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.web.socket.config.annotation.EnableWebSocket;
 import org.springframework.web.socket.config.annotation.WebSocketConfigurer;
@@ -35,6 +42,8 @@ import org.springframework.web.socket.config.annotation.WebSocketHandlerRegistry
 @EnableWebSocket
 public class WebsocketConfig implements WebSocketConfigurer {
 
+    private static final Logger log = LoggerFactory.getLogger(WebsocketConfig.class);
+
     private final SocketServer server;
     private final HandshakeInterceptorImpl handshakeInterceptor;
 
@@ -49,4 +58,33 @@ public class WebsocketConfig implements WebSocketConfigurer {
         registry.addHandler(server, "/")
             .addInterceptors(handshakeInterceptor);
     }
+
+    /**
+     * Installs permessage-deflate if enabled. This runs after Spring Boot's own websocket customizer,
+     * which creates the deployment info the extension is added to.
+     */
+    @Bean
+    public WebServerFactoryCustomizer<UndertowServletWebServerFactory> websocketCompressionCustomizer(
+        ServerConfig serverConfig
+    ) {
+        return factory -> {
+            WebsocketCompressionConfig config = serverConfig.getWebsocketCompression();
+            if (!config.getEnabled()) {
+                return;
+            }
+
+            factory.addDeploymentInfoCustomizers(deploymentInfo -> {
+                WebSocketDeploymentInfo info = (WebSocketDeploymentInfo) deploymentInfo.getServletContextAttributes()
+                    .get(WebSocketDeploymentInfo.ATTRIBUTE_NAME);
+
+                if (info == null) {
+                    log.warn("No websocket deployment found, permessage-deflate is not enabled");
+                    return;
+                }
+
+                info.addExtension(new ThresholdDeflateHandshake(config));
+                log.info("Enabled permessage-deflate for messages of at least {} bytes", config.getMinSize());
+            });
+        };
+    }
 }
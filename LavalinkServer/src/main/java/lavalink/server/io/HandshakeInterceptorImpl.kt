@@ -42,13 +42,13 @@ constructor(private val serverConfig: ServerConfig, private val socketServer: So
     }
 
     /**
-     * Checks credentials and sets the Lavalink version header
+     * Checks credentials, sets the Lavalink version header and negotiates the message encoding
      *
      * @return true if authenticated
      */
     override fun beforeHandshake(
         request: ServerHttpRequest, response: ServerHttpResponse, wsHandler: WebSocketHandler,
-        attributes: Map<String, Any>
+        attributes: MutableMap<String, Any>
     ): Boolean {
         val matches = if (serverConfig.password.isNullOrBlank()) {
             true
@@ -71,6 +71,21 @@ constructor(private val serverConfig: ServerConfig, private val socketServer: So
             val resumeKey = request.headers.getFirst("Resume-Key")
             val resuming = resumeKey != null && socketServer.canResume(resumeKey)
             response.headers.add("Session-Resumed", resuming.toString())
+
+            val requested = request.headers.getFirst(MessageEncoding.HEADER)
+            var encoding = requested?.let { MessageEncoding.fromHeader(it) }
+            if (requested != null && encoding == null) {
+                log.warn("Unknown message encoding '$requested' requested by ${request.remoteAddress}, using json")
+            }
+
+            /* a resumed session keeps the encoding it was created with */
+            if (resuming) {
+                encoding = socketServer.getResumableEncoding(resumeKey!!)
+            }
+
+            encoding = encoding ?: MessageEncoding.JSON
+            attributes[MessageEncoding.ATTRIBUTE] = encoding
+            response.headers.add(MessageEncoding.HEADER, encoding.headerValue)
         }
 
         return matches
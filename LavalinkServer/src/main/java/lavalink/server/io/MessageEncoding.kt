@@ -0,0 +1,197 @@
+/*
+ *  Copyright (c) 2021 Freya Arbjerg and contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ *
+ */
+
+package lavalink.server.io
+
+import com.fasterxml.jackson.core.JsonGenerator
+import com.fasterxml.jackson.core.type.TypeReference
+import com.fasterxml.jackson.databind.DeserializationFeature
+import com.fasterxml.jackson.databind.JsonNode
+import com.fasterxml.jackson.databind.ObjectMapper
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream
+import com.fasterxml.jackson.dataformat.cbor.databind.CBORMapper
+import com.fasterxml.jackson.module.kotlin.jacksonObjectMapper
+import com.fasterxml.jackson.module.kotlin.registerKotlinModule
+import io.prometheus.client.Histogram
+import lavalink.server.util.Util
+import org.apache.commons.codec.binary.Base64
+import org.json.JSONArray
+import org.json.JSONObject
+import org.springframework.web.socket.BinaryMessage
+import org.springframework.web.socket.TextMessage
+import org.springframework.web.socket.WebSocketMessage
+import java.io.ByteArrayOutputStream
+import java.math.BigDecimal
+import java.math.BigInteger
+
+/**
+ * The encoding used for the frames of a websocket session, negotiated with the 'Message-Encoding' handshake header.
+ */
+enum class MessageEncoding(val headerValue: String) {
+    /**
+     * Text frames containing JSON, the default.
+     */
+    JSON("json") {
+        override fun encode(payload: JSONObject): WebSocketMessage<*> = TextMessage(payload.toString())
+
+        override fun batch(messages: List<WebSocketMessage<*>>): WebSocketMessage<*> {
+            val json = StringBuilder("{\"op\":\"$BATCH_OP\",\"$BATCH_FIELD\":[")
+            messages.forEachIndexed { i, message ->
+                if (i > 0) json.append(',')
+                json.append(message.payload as String)
+            }
+
+            return TextMessage(json.append("]}"))
+        }
+    },
+
+    /**
+     * Binary frames containing CBOR, tracks are sent as raw bytes instead of base64 strings.
+     */
+    CBOR("cbor") {
+        override fun encode(payload: JSONObject): WebSocketMessage<*> {
+            val cbor = ByteArrayOutputStream()
+            cborMapper.factory.createGenerator(cbor).use { writeCbor(it, payload, null) }
+            return BinaryMessage(cbor.toByteArray())
+        }
+
+        override fun batch(messages: List<WebSocketMessage<*>>): WebSocketMessage<*> {
+            val cbor = ByteArrayOutputStream()
+            cbor.write(0xA2) // map of two pairs
+            writeCborText(cbor, "op")
+            writeCborText(cbor, BATCH_OP)
+            writeCborText(cbor, BATCH_FIELD)
+            cbor.write(0x9F) // array of indefinite length
+            messages.forEach { message ->
+                val payload = (message as BinaryMessage).payload.duplicate()
+                cbor.write(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining())
+            }
+            cbor.write(0xFF) // end of the array
+
+            return BinaryMessage(cbor.toByteArray())
+        }
+
+        /* only used for short ASCII keys */
+        private fun writeCborText(cbor: ByteArrayOutputStream, text: String) {
+            cbor.write(0x60 + text.length)
+            cbor.write(text.toByteArray(Charsets.US_ASCII))
+        }
+    };
+
+    /**
+     * Encodes the supplied [payload] into a websocket message.
+     */
+    abstract fun encode(payload: JSONObject): WebSocketMessage<*>
+
+    /**
+     * Combines already encoded messages into a single 'replay' message, without decoding them again.
+     */
+    abstract fun batch(messages: List<WebSocketMessage<*>>): WebSocketMessage<*>
+
+    companion object {
+        const val HEADER = "Message-Encoding"
+        const val ATTRIBUTE = "lavalink.encoding"
+
+        private const val BATCH_OP = "replay"
+        private const val BATCH_FIELD = "messages"
+
+        private val jsonMapper = jacksonObjectMapper().configureForOps()
+        private val cborMapper = CBORMapper().registerKotlinModule().configureForOps()
+
+        private val decodeTime = Histogram.build()
+            .name("lavalink_websocket_decode_seconds")
+            .help("Time spent decoding incoming websocket messages into ops")
+            .labelNames("encoding")
+            .buckets(0.00001, 0.000025, 0.00005, 0.0001, 0.00025, 0.0005, 0.001, 0.005, 0.01)
+            .register()
+
+        private fun <T : ObjectMapper> T.configureForOps(): T = apply {
+            disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES)
+        }
+
+        /**
+         * Returns the encoding matching the supplied header value, or null if it is unknown.
+         */
+        fun fromHeader(value: String): MessageEncoding? =
+            values().find { it.headerValue.equals(value.trim(), ignoreCase = true) }
+
+        /**
+         * Decodes an incoming message in a single pass, text messages are read as JSON and binary messages as CBOR.
+         * Binary values like tracks are kept as byte arrays.
+         */
+        fun decode(message: WebSocketMessage<*>): Op {
+            val binary = message is BinaryMessage
+            val timer = decodeTime.labels(if (binary) CBOR.headerValue else JSON.headerValue).startTimer()
+            try {
+                return when (message) {
+                    is BinaryMessage -> cborMapper.readValue(ByteBufferBackedInputStream(message.payload), Op::class.java)
+                    else -> jsonMapper.readValue(message.payload as String, Op::class.java)
+                }
+            } finally {
+                timer.observeDuration()
+            }
+        }
+
+        /**
+         * Binds a part of a decoded message which is kept as a tree, like a single filter. Works for either encoding.
+         */
+        fun <T> convert(node: JsonNode, type: TypeReference<T>): T = jsonMapper.readerFor(type).readValue(node)
+
+        /**
+         * Writes a payload straight to CBOR, without copying it into maps first. Encoded tracks are written as raw
+         * bytes, tracks which were put as base64 strings are decoded first.
+         */
+        private fun writeCbor(gen: JsonGenerator, value: Any?, key: String?) {
+            when (value) {
+                null, JSONObject.NULL -> gen.writeNull()
+                is JSONObject -> {
+                    gen.writeStartObject()
+                    value.keySet().forEach { name ->
+                        gen.writeFieldName(name)
+                        writeCbor(gen, value.opt(name), name)
+                    }
+                    gen.writeEndObject()
+                }
+                is JSONArray -> {
+                    gen.writeStartArray()
+                    for (i in 0 until value.length()) {
+                        writeCbor(gen, value.opt(i), null)
+                    }
+                    gen.writeEndArray()
+                }
+                is Util.EncodedTrack -> gen.writeBinary(value.buffer)
+                is String -> if (key == "track") gen.writeBinary(Base64.decodeBase64(value)) else gen.writeString(value)
+                is Boolean -> gen.writeBoolean(value)
+                is Int -> gen.writeNumber(value)
+                is Long -> gen.writeNumber(value)
+                is Float -> gen.writeNumber(value)
+                is Double -> gen.writeNumber(value)
+                is BigInteger -> gen.writeNumber(value)
+                is BigDecimal -> gen.writeNumber(value)
+                is Number -> gen.writeNumber(value.toLong())
+                is Enum<*> -> gen.writeString(value.name)
+                else -> gen.writeString(value.toString())
+            }
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ *  Copyright (c) 2021 Freya Arbjerg and contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ *
+ */
+
+package lavalink.server.io
+
+import io.prometheus.client.Histogram
+import lavalink.server.config.ServerConfig
+import org.slf4j.LoggerFactory
+import org.springframework.stereotype.Component
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import javax.annotation.PreDestroy
+
+/**
+ * Runs websocket ops on a worker pool instead of the Undertow I/O threads.
+ *
+ * Tasks with the same key run one at a time in submission order, tasks with different keys run in parallel.
+ */
+@Component
+class OpExecutor(serverConfig: ServerConfig) {
+
+    companion object {
+        private val log = LoggerFactory.getLogger(OpExecutor::class.java)
+
+        /* Tasks a key may run before yielding its worker to other keys */
+        private const val MAX_TASKS_PER_RUN = 32
+
+        private val queueTime = Histogram.build()
+            .name("lavalink_websocket_op_queue_seconds")
+            .help("Time websocket ops spent waiting for a worker")
+            .buckets(0.0001, 0.0005, 0.001, 0.005, 0.01, 0.05, 0.1, 0.5, 1.0)
+            .register()
+
+        private val executionTime = Histogram.build()
+            .name("lavalink_websocket_op_execution_seconds")
+            .help("Time spent executing websocket ops")
+            .buckets(0.0001, 0.0005, 0.001, 0.005, 0.01, 0.05, 0.1, 0.5, 1.0)
+            .register()
+    }
+
+    private val pool: ExecutorService
+    private val queues = ConcurrentHashMap<Any, SerialQueue>()
+
+    init {
+        var threads = serverConfig.opWorkerThreads
+        if (threads <= 0) {
+            threads = Runtime.getRuntime().availableProcessors()
+        }
+
+        val counter = AtomicInteger()
+        pool = ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, LinkedBlockingQueue()) { r ->
+            val thread = Thread(r)
+            thread.name = "lavalink-op-worker-${counter.incrementAndGet()}"
+            thread.isDaemon = true
+            thread
+        }
+
+        log.info("Handling websocket ops on $threads worker threads")
+    }
+
+    /**
+     * Queues a task behind all earlier tasks with the same key.
+     */
+    fun execute(key: Any, task: () -> Unit) {
+        val submitted = System.nanoTime()
+        val job = Runnable {
+            queueTime.observe((System.nanoTime() - submitted) / 1e9)
+            val timer = executionTime.startTimer()
+            try {
+                task()
+            } catch (e: Exception) {
+                log.error("Exception while handling websocket op", e)
+            } finally {
+                timer.observeDuration()
+            }
+        }
+
+        var start: SerialQueue? = null
+        queues.compute(key) { _, existing ->
+            val queue = existing ?: SerialQueue(key)
+            queue.tasks.addLast(job)
+            if (!queue.running) {
+                queue.running = true
+                start = queue
+            }
+            queue
+        }
+
+        start?.let(pool::execute)
+    }
+
+    /**
+     * Drops the queued tasks of every key matching [predicate]. A task which already runs is not interrupted.
+     */
+    fun discard(predicate: (Any) -> Boolean) {
+        queues.keys.filter(predicate).forEach { key ->
+            queues.computeIfPresent(key) { _, queue ->
+                queue.tasks.clear()
+                queue
+            }
+        }
+    }
+
+    @PreDestroy
+    fun shutdown() {
+        pool.shutdownNow()
+    }
+
+    /**
+     * The pending tasks of one key. Only touched while holding the map lock of the key,
+     * so a queue is removed exactly when it runs dry.
+     */
+    private inner class SerialQueue(private val key: Any) : Runnable {
+        val tasks = ArrayDeque<Runnable>()
+        var running = false
+
+        override fun run() {
+            repeat(MAX_TASKS_PER_RUN) {
+                val next = poll() ?: return
+                next.run()
+            }
+
+            pool.execute(this)
+        }
+
+        private fun poll(): Runnable? {
+            var next: Runnable? = null
+            queues.compute(key) { _, queue ->
+                next = tasks.removeFirstOrNull()
+                if (next == null) {
+                    running = false
+                    null
+                } else queue
+            }
+
+            return next
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ *  Copyright (c) 2021 Freya Arbjerg and contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ *
+ */
+
+package lavalink.server.io
+
+import com.fasterxml.jackson.annotation.JsonSubTypes
+import com.fasterxml.jackson.annotation.JsonTypeInfo
+import com.fasterxml.jackson.databind.JsonNode
+import com.fasterxml.jackson.module.kotlin.jacksonTypeRef
+import lavalink.server.player.filters.FilterChain
+import lavalink.server.player.filters.configs.*
+import org.slf4j.LoggerFactory
+
+/**
+ * An op received from a client. The 'op' property selects the subtype, and is read before
+ * the rest of the payload is bound so every message is only parsed once.
+ */
+@JsonTypeInfo(
+    use = JsonTypeInfo.Id.NAME,
+    include = JsonTypeInfo.As.PROPERTY,
+    property = "op",
+    visible = true,
+    defaultImpl = UnknownOp::class
+)
+@JsonSubTypes(
+    JsonSubTypes.Type(value = VoiceUpdateOp::class, name = "voiceUpdate"),
+    JsonSubTypes.Type(value = PlayOp::class, name = "play"),
+    JsonSubTypes.Type(value = StopOp::class, name = "stop"),
+    JsonSubTypes.Type(value = PauseOp::class, name = "pause"),
+    JsonSubTypes.Type(value = SeekOp::class, name = "seek"),
+    JsonSubTypes.Type(value = VolumeOp::class, name = "volume"),
+    JsonSubTypes.Type(value = DestroyOp::class, name = "destroy"),
+    JsonSubTypes.Type(value = ConfigureResumingOp::class, name = "configureResuming"),
+    JsonSubTypes.Type(value = EqualizerOp::class, name = "equalizer"),
+    JsonSubTypes.Type(value = FiltersOp::class, name = "filters"),
+    JsonSubTypes.Type(value = BatchOp::class, name = "batch")
+)
+sealed class Op {
+    /**
+     * The guild this op is targeting, or null if it affects the whole session.
+     */
+    open val guildId: String?
+        get() = null
+}
+
+data class VoiceUpdateOp(
+    override val guildId: String,
+    val sessionId: String,
+    val event: VoiceServerEvent
+) : Op()
+
+data class VoiceServerEvent(val token: String, val endpoint: String? = null)
+
+data class PlayOp(
+    override val guildId: String,
+    /** Either a base64 string or, for binary encodings, the raw bytes of the track. */
+    val track: Any,
+    val startTime: Long? = null,
+    val endTime: Long? = null,
+    val volume: Float? = null,
+    val noReplace: Boolean = false,
+    val pause: Boolean = false
+) : Op()
+
+data class StopOp(override val guildId: String) : Op()
+
+data class PauseOp(override val guildId: String, val pause: Boolean) : Op()
+
+data class SeekOp(override val guildId: String, val position: Long) : Op()
+
+data class VolumeOp(override val guildId: String, val volume: Int) : Op()
+
+data class DestroyOp(override val guildId: String) : Op()
+
+data class ConfigureResumingOp(val key: String? = null, val timeout: Long? = null) : Op()
+
+data class EqualizerOp(override val guildId: String, val bands: List<Band>) : Op()
+
+/**
+ * Filters are kept as trees and bound one by one, so a malformed filter is left out instead of failing the whole op.
+ */
+data class FiltersOp(
+    override val guildId: String,
+    val volume: JsonNode? = null,
+    val equalizer: JsonNode? = null,
+    val karaoke: JsonNode? = null,
+    val timescale: JsonNode? = null,
+    val tremolo: JsonNode? = null,
+    val distortion: JsonNode? = null,
+    val lowPass: JsonNode? = null,
+    val rotation: JsonNode? = null,
+    val channelMix: JsonNode? = null,
+    val vibrato: JsonNode? = null
+) : Op() {
+    companion object {
+        private val log = LoggerFactory.getLogger(FiltersOp::class.java)
+    }
+
+    fun toFilterChain() = FilterChain(
+        bind("volume", volume),
+        bind("equalizer", equalizer),
+        bind<KaraokeConfig>("karaoke", karaoke),
+        bind<TimescaleConfig>("timescale", timescale),
+        bind<TremoloConfig>("tremolo", tremolo),
+        bind<DistortionConfig>("distortion", distortion),
+        bind<LowPassConfig>("lowPass", lowPass),
+        bind<RotationConfig>("rotation", rotation),
+        bind<ChannelMixConfig>("channelMix", channelMix),
+        bind<VibratoConfig>("vibrato", vibrato)
+    )
+
+    private inline fun <reified T> bind(name: String, node: JsonNode?): T? {
+        if (node == null || node.isNull) return null
+
+        return try {
+            MessageEncoding.convert(node, jacksonTypeRef<T>())
+        } catch (e: Exception) {
+            log.error("Error while parsing filter $name, leaving it out", e)
+            null
+        }
+    }
+}
+
+/**
+ * Ops are kept as trees and decoded one by one when the batch is handled, so a malformed op only fails itself.
+ */
+data class BatchOp(val ops: List<JsonNode>, val nonce: Any? = null) : Op()
+
+/**
+ * Any op with a missing or unknown 'op' property.
+ */
+data class UnknownOp(val op: String? = null) : Op()
@@ -0,0 +1,272 @@
+/*
+ *  Copyright (c) 2021 Freya Arbjerg and contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ *
+ */
+
+package lavalink.server.io
+
+import io.prometheus.client.Counter
+import lavalink.server.config.ResumeBufferConfig
+import org.slf4j.LoggerFactory
+import org.springframework.web.socket.BinaryMessage
+import org.springframework.web.socket.TextMessage
+import org.springframework.web.socket.WebSocketMessage
+import java.io.*
+import java.nio.ByteBuffer
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.Paths
+
+/**
+ * Holds the messages of a paused session until it is resumed.
+ *
+ * Player updates and stats are not kept, as fresh ones are sent on resume. Everything else is kept in memory up to
+ * [ResumeBufferConfig.maxBytes], after which messages are either appended to a temporary file or dropped.
+ */
+class ResumeBuffer(private val config: ResumeBufferConfig) {
+
+    companion object {
+        private val log = LoggerFactory.getLogger(ResumeBuffer::class.java)
+
+        private const val TEXT: Byte = 0
+        private const val BINARY: Byte = 1
+
+        private val dropped = Counter.build()
+            .name("lavalink_resume_buffer_dropped_total")
+            .help("Messages of paused sessions which were not kept for resuming")
+            .labelNames("reason")
+            .register()
+
+        private val spilled = Counter.build()
+            .name("lavalink_resume_buffer_spilled_total")
+            .help("Messages of paused sessions which were written to disk")
+            .register()
+    }
+
+    private var previous: Backlog? = null
+    private val memory = ArrayDeque<WebSocketMessage<*>>()
+    private var memoryBytes = 0L
+    private var spillFile: Path? = null
+    private var spillOutput: DataOutputStream? = null
+    private var spillBytes = 0L
+    private var spillCount = 0
+    private var overflowing = false
+
+    val size: Int
+        @Synchronized get() = (previous?.size ?: 0) + memory.size + spillCount
+
+    /**
+     * Keeps the messages which were not sent before the session was paused, ahead of any added message.
+     * The backlog is not read until the buffer is drained.
+     */
+    @Synchronized
+    fun restore(backlog: Backlog) {
+        check(previous == null && size == 0) { "Only an empty buffer can be restored" }
+        previous = backlog
+    }
+
+    @Synchronized
+    fun add(message: WebSocketMessage<*>, coalesceKey: String?) {
+        if (coalesceKey != null) {
+            dropped.labels("superseded").inc()
+            return
+        }
+
+        val length = message.payloadLength.toLong()
+        if (spillOutput == null && memoryBytes + length <= config.maxBytes) {
+            memory.addLast(message)
+            memoryBytes += length
+            return
+        }
+
+        if (!config.spillToDisk || !spill(message)) {
+            dropped.labels("overflow").inc()
+            if (!overflowing) {
+                log.warn("Resume buffer is full, events will be lost when the session is resumed")
+                overflowing = true
+            }
+        }
+    }
+
+    /**
+     * Appends a message to the spill file once the memory budget is used up, so their order is kept.
+     */
+    private fun spill(message: WebSocketMessage<*>): Boolean {
+        val bytes = when (message) {
+            is BinaryMessage -> message.payload.duplicate().let { buf -> ByteArray(buf.remaining()).also { buf.get(it) } }
+            else -> (message.payload as String).toByteArray(Charsets.UTF_8)
+        }
+
+        if (spillBytes + bytes.size > config.maxSpillBytes) return false
+
+        try {
+            val output = spillOutput ?: openSpillFile()
+            output.writeByte(if (message is BinaryMessage) BINARY.toInt() else TEXT.toInt())
+            output.writeInt(bytes.size)
+            output.write(bytes)
+        } catch (e: IOException) {
+            log.error("Failed to spill resume event to disk", e)
+            return false
+        }
+
+        spillBytes += bytes.size
+        spillCount++
+        spilled.inc()
+        return true
+    }
+
+    private fun openSpillFile(): DataOutputStream {
+        val dir = config.spillDirectory?.let { Paths.get(it) }
+        val file = if (dir != null) Files.createTempFile(dir, "lavalink-resume-", ".bin")
+        else Files.createTempFile("lavalink-resume-", ".bin")
+
+        file.toFile().deleteOnExit()
+        log.info("Spilling resume events to $file")
+        spillFile = file
+        return DataOutputStream(BufferedOutputStream(Files.newOutputStream(file))).also { spillOutput = it }
+    }
+
+    /**
+     * Empties the buffer, returning its messages in order. Nothing is read from disk yet.
+     */
+    @Synchronized
+    fun drain(): Backlog {
+        val backlog = Backlog(previous, memory.toList(), spillFile, spillCount)
+        previous = null
+        memory.clear()
+        memoryBytes = 0
+        overflowing = false
+
+        spillOutput?.close()
+        spillOutput = null
+        spillFile = null
+        spillBytes = 0
+        spillCount = 0
+
+        return backlog
+    }
+
+    /**
+     * Discards all messages and deletes the spill file, if any.
+     */
+    @Synchronized
+    fun clear() {
+        drain().close()
+    }
+
+    /**
+     * Messages waiting to be replayed, in order: those of an earlier backlog, then those held in memory and then
+     * those spilled to disk. Reading may block on disk, so it should not happen on I/O threads.
+     * Closing discards the remaining messages and deletes the spill file.
+     */
+    class Backlog internal constructor(
+        private var previous: Backlog?,
+        memory: List<WebSocketMessage<*>>,
+        private var spillFile: Path?,
+        private var spillCount: Int
+    ) : Closeable {
+
+        private val head = ArrayDeque(memory)
+        private var input: DataInputStream? = null
+
+        constructor(messages: List<WebSocketMessage<*>>) : this(null, messages, null, 0)
+
+        val size: Int
+            @Synchronized get() = (previous?.size ?: 0) + head.size + spillCount
+
+        /**
+         * Reads up to [max] messages, an empty list means the backlog is exhausted.
+         */
+        @Synchronized
+        fun read(max: Int): List<WebSocketMessage<*>> {
+            val messages = ArrayList<WebSocketMessage<*>>()
+            previous?.let {
+                messages.addAll(it.read(max))
+                if (messages.isEmpty()) {
+                    it.close()
+                    previous = null
+                } else {
+                    return messages
+                }
+            }
+
+            while (messages.size < max) {
+                messages.add(head.removeFirstOrNull() ?: readSpilled() ?: break)
+            }
+
+            return messages
+        }
+
+        /**
+         * Puts messages which were read but could not be sent back at the front.
+         */
+        @Synchronized
+        fun unread(messages: List<WebSocketMessage<*>>) {
+            previous?.let {
+                it.unread(messages)
+                return
+            }
+
+            messages.asReversed().forEach { head.addFirst(it) }
+        }
+
+        private fun readSpilled(): WebSocketMessage<*>? {
+            val file = spillFile ?: return null
+            if (spillCount == 0) {
+                close()
+                return null
+            }
+
+            try {
+                val input = input ?: DataInputStream(BufferedInputStream(Files.newInputStream(file))).also { input = it }
+                val type = input.readByte()
+                val bytes = ByteArray(input.readInt())
+                input.readFully(bytes)
+                spillCount--
+
+                return if (type == BINARY) BinaryMessage(ByteBuffer.wrap(bytes))
+                else TextMessage(String(bytes, Charsets.UTF_8))
+            } catch (e: IOException) {
+                log.error("Failed to read spilled resume events from $file", e)
+                close()
+                return null
+            }
+        }
+
+        @Synchronized
+        override fun close() {
+            previous?.close()
+            previous = null
+            head.clear()
+            spillCount = 0
+
+            try {
+                input?.close()
+                spillFile?.let { Files.deleteIfExists(it) }
+            } catch (e: IOException) {
+                log.warn("Failed to delete spilled resume events", e)
+            }
+
+            input = null
+            spillFile = null
+        }
+    }
+}
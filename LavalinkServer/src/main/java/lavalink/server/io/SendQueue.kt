@@ -0,0 +1,316 @@
+/*
+ *  Copyright (c) 2021 Freya Arbjerg and contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ *
+ */
+
+package lavalink.server.io
+
+import io.prometheus.client.Counter
+import io.prometheus.client.Gauge
+import io.undertow.websockets.core.WebSocketCallback
+import io.undertow.websockets.core.WebSocketChannel
+import io.undertow.websockets.core.WebSockets
+import lavalink.server.config.SendQueueConfig
+import org.json.JSONObject
+import org.slf4j.LoggerFactory
+import org.springframework.web.socket.BinaryMessage
+import org.springframework.web.socket.WebSocketMessage
+import java.util.concurrent.Executor
+
+/**
+ * Outbound queue of a single session, bounded if [SendQueueConfig.enabled] is set.
+ *
+ * Only one batch of frames is handed to Undertow at a time, so a client that reads slowly backs up here, where the
+ * amount of queued messages and bytes is capped, rather than in Undertow's unbounded write buffers.
+ * Pending player updates and stats are replaced by newer ones, and are the first to be dropped once the queue is full.
+ * Other messages are never dropped: if the queue is still full, [onOverflow] is called once to close the session,
+ * and messages are queued past the limits until the queue is cleared.
+ * Without limits, messages are neither replaced nor dropped and the queue only keeps them in order.
+ * The key of every replaced or dropped message is passed to [onDropped], outside of the queue's lock.
+ */
+class SendQueue(
+    private val config: SendQueueConfig,
+    private val executor: Executor,
+    private val replayBatcher: ((List<WebSocketMessage<*>>) -> WebSocketMessage<*>)?,
+    private val onOverflow: () -> Unit,
+    private val onDropped: (String) -> Unit,
+    private val channelSupplier: () -> WebSocketChannel?
+) {
+
+    companion object {
+        private val log = LoggerFactory.getLogger(SendQueue::class.java)
+
+        private val queuedMessages = Gauge.build()
+            .name("lavalink_websocket_send_queue_messages")
+            .help("Outbound messages waiting to be written, across all sessions")
+            .register()
+
+        private val queuedBytes = Gauge.build()
+            .name("lavalink_websocket_send_queue_bytes")
+            .help("Outbound bytes waiting to be written, across all sessions")
+            .register()
+
+        private val coalesced = Counter.build()
+            .name("lavalink_websocket_send_queue_coalesced_total")
+            .help("Outbound messages replaced by a newer message of the same kind before being written")
+            .register()
+
+        private val dropped = Counter.build()
+            .name("lavalink_websocket_send_queue_dropped_total")
+            .help("Outbound player updates and stats dropped because the send queue of a session was full")
+            .register()
+
+        private val overflows = Counter.build()
+            .name("lavalink_websocket_send_queue_overflows_total")
+            .help("Sessions closed because their send queue was full of messages which can not be dropped")
+            .register()
+
+        /**
+         * Returns the key under which a pending message is replaced by newer ones, or null if it must always be sent.
+         */
+        fun coalesceKey(payload: JSONObject): String? = when (val op = payload.optString("op")) {
+            "playerUpdate" -> op + ":" + payload.optString("guildId")
+            "playerUpdates", "stats" -> op
+            else -> null
+        }
+    }
+
+    private class Entry(val message: WebSocketMessage<*>, val key: String?)
+
+    private val queue = ArrayDeque<Entry>()
+    private val pending = HashMap<String, Entry>()
+    private var backlog: ResumeBuffer.Backlog? = null
+    private var loading = false
+    private var bytes = 0L
+    private var inFlight = 0
+    private var generation = 0
+    private var overflowing = false
+
+    val size: Int
+        @Synchronized get() = queue.size
+
+    /**
+     * Queues a message and starts writing if no batch is in flight.
+     */
+    fun offer(message: WebSocketMessage<*>, coalesceKey: String? = null) {
+        val key = coalesceKey.takeIf { config.enabled }
+        var overflowed = false
+        val lost = ArrayList<String>(0)
+        synchronized(this) {
+            /* the newer message goes to the back, so it never overtakes messages queued after the replaced one */
+            val existing = key?.let { pending.remove(it) }
+            if (existing != null) {
+                queue.remove(existing)
+                queuedMessages.dec()
+                adjustBytes(-existing.message.payloadLength.toLong())
+                coalesced.inc()
+                lost.add(key!!)
+            }
+
+            if (config.enabled && !overflowing && !makeRoom(message, lost)) {
+                if (key != null) {
+                    dropped.inc()
+                    lost.add(key)
+                    return@synchronized
+                }
+
+                log.warn(
+                    "Send queue is full of messages which can not be dropped, closing the session. " +
+                        "{} messages of {} bytes are queued", queue.size, bytes
+                )
+                overflows.inc()
+                overflowing = true
+                overflowed = true
+            }
+
+            val entry = Entry(message, key)
+            queue.addLast(entry)
+            if (key != null) pending[key] = entry
+            queuedMessages.inc()
+            adjustBytes(message.payloadLength.toLong())
+        }
+
+        lost.forEach(onDropped)
+        if (overflowed) onOverflow()
+        flush()
+    }
+
+    /**
+     * Writes the supplied messages ahead of anything queued. They are read one batch at a time off the calling
+     * thread, sent in a single frame each if there is a [replayBatcher], and do not count towards the limits of
+     * the queue.
+     */
+    fun replay(messages: ResumeBuffer.Backlog) {
+        synchronized(this) {
+            check(backlog == null) { "A backlog is already being replayed" }
+            backlog = messages
+        }
+
+        flush()
+    }
+
+    /**
+     * Removes and returns every message which has not been handed to Undertow yet, without reading a backlog
+     * that is still being replayed. Writes still in flight on the old channel no longer hold back the queue.
+     */
+    @Synchronized
+    fun clear(): ResumeBuffer.Backlog {
+        val messages = ResumeBuffer.Backlog(backlog, queue.map { it.message }, null, 0)
+        backlog = null
+        loading = false
+        generation++
+        inFlight = 0
+        overflowing = false
+        queuedMessages.dec(queue.size.toDouble())
+        adjustBytes(-bytes)
+        queue.clear()
+        pending.clear()
+        return messages
+    }
+
+    /**
+     * Ensures there is space for the message, evicting the oldest replaceable messages if needed.
+     * A message is always accepted into an empty queue, no matter its size.
+     */
+    private fun makeRoom(message: WebSocketMessage<*>, lost: MutableList<String>): Boolean {
+        while (queue.isNotEmpty() && isFull(message)) {
+            val victim = queue.firstOrNull { it.key != null } ?: return false
+            queue.remove(victim)
+            pending.remove(victim.key)
+            queuedMessages.dec()
+            adjustBytes(-victim.message.payloadLength.toLong())
+            dropped.inc()
+            lost.add(victim.key!!)
+        }
+
+        return true
+    }
+
+    private fun isFull(message: WebSocketMessage<*>) =
+        queue.size >= config.maxMessages || bytes + message.payloadLength > config.maxBytes
+
+    private fun adjustBytes(delta: Long) {
+        bytes += delta
+        queuedBytes.inc(delta.toDouble())
+    }
+
+    private fun flush() {
+        val channel = channelSupplier() ?: return
+        var gen = 0
+        val batch = synchronized(this) {
+            if (inFlight > 0 || loading || (queue.isEmpty() && backlog == null)) return
+            gen = generation
+
+            val replayed = backlog
+            if (replayed != null) {
+                loading = true
+                executor.execute { loadBacklog(replayed, gen) }
+                return
+            }
+
+            val batch = ArrayList<WebSocketMessage<*>>()
+            while (batch.size < config.batchSize.coerceAtLeast(1)) {
+                val entry = queue.removeFirstOrNull() ?: break
+                if (entry.key != null) pending.remove(entry.key)
+                queuedMessages.dec()
+                adjustBytes(-entry.message.payloadLength.toLong())
+                batch.add(entry.message)
+            }
+
+            if (batch.isEmpty()) return
+            inFlight = batch.size
+            batch
+        }
+
+        batch.forEach { write(channel, it, gen) }
+    }
+
+    /**
+     * Reads and writes the next batch of a backlog. This may read from disk, so it runs on the executor rather than
+     * on an I/O thread, and outside of the queue's lock.
+     */
+    private fun loadBacklog(replayed: ResumeBuffer.Backlog, gen: Int) {
+        var exhausted = false
+        var channel: WebSocketChannel? = null
+        val frames = synchronized(replayed) {
+            val messages = replayed.read(config.batchSize.coerceAtLeast(1))
+            channel = channelSupplier()
+
+            synchronized(this) {
+                /* cleared meanwhile, the messages belong to whoever took the backlog */
+                if (gen != generation || channel == null) {
+                    replayed.unread(messages)
+                    if (gen == generation) loading = false
+                    return
+                }
+
+                loading = false
+                if (messages.isEmpty()) {
+                    backlog = null
+                    exhausted = true
+                    return@synchronized emptyList()
+                }
+
+                val frames = if (replayBatcher != null && messages.size > 1) listOf(replayBatcher.invoke(messages))
+                else messages
+                inFlight = frames.size
+                frames
+            }
+        }
+
+        if (exhausted) {
+            replayed.close()
+            flush()
+            return
+        }
+
+        frames.forEach { write(channel!!, it, gen) }
+    }
+
+    private fun write(channel: WebSocketChannel, message: WebSocketMessage<*>, gen: Int) {
+        val callback = object : WebSocketCallback<Void> {
+            override fun complete(channel: WebSocketChannel, context: Void?) {
+                log.trace("Sent {}", message.payload)
+                onWritten(gen)
+            }
+
+            override fun onError(channel: WebSocketChannel, context: Void?, throwable: Throwable) {
+                log.error("Error", throwable)
+                onWritten(gen)
+            }
+        }
+
+        try {
+            when (message) {
+                is BinaryMessage -> WebSockets.sendBinary(message.payload, channel, callback)
+                else -> WebSockets.sendText(message.payload as String, channel, callback)
+            }
+        } catch (e: Exception) {
+            log.error("Failed to write message", e)
+            onWritten(gen)
+        }
+    }
+
+    private fun onWritten(gen: Int) {
+        val batchDone = synchronized(this) { gen == generation && --inFlight == 0 }
+        if (batchDone) flush()
+    }
+}
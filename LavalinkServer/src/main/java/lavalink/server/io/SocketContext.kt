@@ -24,17 +24,17 @@
 package lavalink.server.io
 
 import com.sedmelluq.discord.lavaplayer.player.AudioPlayerManager
-import io.undertow.websockets.core.WebSocketCallback
-import io.undertow.websockets.core.WebSocketChannel
-import io.undertow.websockets.core.WebSockets
 import io.undertow.websockets.jsr.UndertowSession
 import lavalink.server.config.ServerConfig
+import lavalink.server.player.LiveStreamHub
 import lavalink.server.player.Player
 import moe.kyokobot.koe.KoeClient
 import moe.kyokobot.koe.KoeEventAdapter
 import moe.kyokobot.koe.MediaConnection
 import org.json.JSONObject
 import org.slf4j.LoggerFactory
+import org.springframework.web.socket.CloseStatus
+import org.springframework.web.socket.WebSocketMessage
 import org.springframework.web.socket.WebSocketSession
 import org.springframework.web.socket.adapter.standard.StandardWebSocketSession
 import java.net.InetSocketAddress
@@ -46,8 +46,11 @@ class SocketContext internal constructor(
     val serverConfig: ServerConfig,
     private var session: WebSocketSession,
     private val socketServer: SocketServer,
+    val scheduler: ScheduledExecutorService,
     val userId: String,
-    private val koe: KoeClient
+    private val koe: KoeClient,
+    val encoding: MessageEncoding,
+    val liveStreamHub: LiveStreamHub
 ) {
 
     companion object {
@@ -59,14 +62,29 @@ class SocketContext internal constructor(
 
     @Volatile
     var sessionPaused = false
-    private val resumeEventQueue = ConcurrentLinkedQueue<String>()
+
+    /** Set first thing on shutdown, ops and player update tasks check it to stop working on a dead session */
+    @Volatile
+    var closed = false
+        private set
+    private val resumeBuffer = ResumeBuffer(serverConfig.resumeBuffer)
 
     /** Null means disabled. See implementation notes */
     var resumeKey: String? = null
     var resumeTimeout = 60L // Seconds
     private var sessionTimeoutFuture: ScheduledFuture<Unit>? = null
-    private val executor: ScheduledExecutorService = Executors.newSingleThreadScheduledExecutor()
-    val playerUpdateService: ScheduledExecutorService
+    private val statsFuture: ScheduledFuture<*>
+    private var playerUpdatesFuture: ScheduledFuture<*>? = null
+    private val sendQueue = SendQueue(
+        serverConfig.sendQueue,
+        scheduler,
+        if (serverConfig.resumeBuffer.batchReplay) encoding::batch else null,
+        { session.close(CloseStatus.SESSION_NOT_RELIABLE.withReason("Send queue overflow")) },
+        ::onUpdateDropped
+    ) {
+        if (session.isOpen) ((session as StandardWebSocketSession).nativeSession as UndertowSession).webSocketChannel
+        else null
+    }
 
     val playingPlayers: List<Player>
         get() {
@@ -77,13 +95,38 @@ class SocketContext internal constructor(
 
 
     init {
-        executor.scheduleAtFixedRate(StatsTask(this, socketServer), 0, 1, TimeUnit.MINUTES)
+        statsFuture = scheduler.scheduleAtFixedRate(StatsTask(this, socketServer), 0, 1, TimeUnit.MINUTES)
+
+        if (serverConfig.playerUpdateBatching) {
+            val interval = serverConfig.playerUpdateInterval.toLong()
+            playerUpdatesFuture = scheduler.scheduleAtFixedRate({ sendPlayerUpdates() }, interval, interval, TimeUnit.SECONDS)
+        }
+    }
+
+    /**
+     * Sends the state of all players with a track in one frame, used when player update batching is enabled.
+     * Paused players are included, like the per player updates which run for as long as a track is loaded.
+     */
+    private fun sendPlayerUpdates() {
+        if (sessionPaused) {
+            return
+        }
 
-        playerUpdateService = Executors.newScheduledThreadPool(2) { r ->
-            val thread = Thread(r)
-            thread.name = "player-update"
-            thread.isDaemon = true
-            thread
+        try {
+            val updated = players.values.filter { it.playingTrack != null && SocketServer.hasPlayerStateChanged(this, it) }
+            SocketServer.sendPlayerUpdates(this, updated)
+        } catch (e: Exception) {
+            log.error("Exception while sending player updates", e)
+        }
+    }
+
+    /**
+     * Makes sure the state of players whose update was dropped is sent again, even if it did not change since.
+     */
+    private fun onUpdateDropped(coalesceKey: String) {
+        when {
+            coalesceKey == "playerUpdates" -> players.values.forEach(Player::onStateLost)
+            coalesceKey.startsWith("playerUpdate:") -> players[coalesceKey.substringAfter(':')]?.onStateLost()
         }
     }
 
@@ -92,6 +135,7 @@ class SocketContext internal constructor(
 
     internal fun getPlayer(guildId: String) =
         players.computeIfAbsent(guildId) {
+            check(!closed) { "Session was closed" }
             Player(this, guildId, audioPlayerManager, serverConfig)
         }
 
@@ -118,8 +162,12 @@ class SocketContext internal constructor(
     }
 
     fun pause() {
-        sessionPaused = true
-        sessionTimeoutFuture = executor.schedule<Unit>({
+        synchronized(resumeBuffer) {
+            sessionPaused = true
+            resumeBuffer.restore(sendQueue.clear())
+        }
+
+        sessionTimeoutFuture = scheduler.schedule<Unit>({
             socketServer.onSessionResumeTimeout(this)
         }, resumeTimeout, TimeUnit.SECONDS)
     }
@@ -127,27 +175,21 @@ class SocketContext internal constructor(
     /**
      * Either sends the payload now or queues it up
      */
-    fun send(payload: JSONObject) = send(payload.toString())
+    fun send(payload: JSONObject) = send(encoding.encode(payload), SendQueue.coalesceKey(payload))
 
-    private fun send(payload: String) {
+    private fun send(message: WebSocketMessage<*>, coalesceKey: String? = null) {
         if (sessionPaused) {
-            resumeEventQueue.add(payload)
-            return
+            synchronized(resumeBuffer) {
+                if (sessionPaused) {
+                    resumeBuffer.add(message, coalesceKey)
+                    return
+                }
+            }
         }
 
         if (!session.isOpen) return
 
-        val undertowSession = (session as StandardWebSocketSession).nativeSession as UndertowSession
-        WebSockets.sendText(payload, undertowSession.webSocketChannel,
-            object : WebSocketCallback<Void> {
-                override fun complete(channel: WebSocketChannel, context: Void?) {
-                    log.trace("Sent {}", payload)
-                }
-
-                override fun onError(channel: WebSocketChannel, context: Void?, throwable: Throwable) {
-                    log.error("Error", throwable)
-                }
-            })
+        sendQueue.offer(message, coalesceKey)
     }
 
     /**
@@ -156,22 +198,28 @@ class SocketContext internal constructor(
     fun stopResumeTimeout() = sessionTimeoutFuture?.cancel(false) ?: false
 
     fun resume(session: WebSocketSession) {
-        sessionPaused = false
         this.session = session
-        log.info("Replaying ${resumeEventQueue.size} events")
 
-        // Bulk actions are not guaranteed to be atomic, so we need to do this imperatively
-        while (resumeEventQueue.isNotEmpty()) {
-            send(resumeEventQueue.remove())
+        // Events sent while replaying must not overtake the buffered ones
+        synchronized(resumeBuffer) {
+            log.info("Replaying ${resumeBuffer.size} events")
+            sendQueue.replay(resumeBuffer.drain())
+            sessionPaused = false
         }
 
+        // Updates were not kept while paused, so the full state of every player is sent regardless of deltas
         players.values.forEach { SocketServer.sendPlayerUpdate(this, it) }
     }
 
     internal fun shutdown() {
+        closed = true
+        socketServer.discardOps(this)
         log.info("Shutting down " + playingPlayers.size + " playing players.")
-        executor.shutdown()
-        playerUpdateService.shutdown()
+        statsFuture.cancel(false)
+        playerUpdatesFuture?.cancel(false)
+        sessionTimeoutFuture?.cancel(false)
+        sendQueue.clear().close()
+        resumeBuffer.clear()
         players.values.forEach(Player::stop)
         koe.close()
     }
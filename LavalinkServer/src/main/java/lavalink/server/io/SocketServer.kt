@@ -23,33 +23,47 @@
 
 package lavalink.server.io
 
+import com.fasterxml.jackson.module.kotlin.jacksonTypeRef
 import com.sedmelluq.discord.lavaplayer.player.AudioPlayerManager
+import io.prometheus.client.Counter
 import lavalink.server.config.ServerConfig
+import lavalink.server.player.LiveStreamHub
 import lavalink.server.player.Player
+import lavalink.server.player.TrackDecodeCache
 import lavalink.server.util.Util
 import moe.kyokobot.koe.Koe
 import moe.kyokobot.koe.KoeOptions
+import org.json.JSONArray
 import org.json.JSONObject
 import org.slf4j.LoggerFactory
 import org.springframework.stereotype.Service
+import org.springframework.web.socket.BinaryMessage
 import org.springframework.web.socket.CloseStatus
 import org.springframework.web.socket.TextMessage
+import org.springframework.web.socket.WebSocketMessage
 import org.springframework.web.socket.WebSocketSession
-import org.springframework.web.socket.handler.TextWebSocketHandler
+import org.springframework.web.socket.handler.AbstractWebSocketHandler
+import java.util.concurrent.CompletableFuture
 import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.ScheduledExecutorService
 
 @Service
 class SocketServer(
     private val serverConfig: ServerConfig,
     private val audioPlayerManager: AudioPlayerManager,
+    private val scheduler: ScheduledExecutorService,
+    private val opExecutor: OpExecutor,
+    private val liveStreamHub: LiveStreamHub,
+    trackDecodeCache: TrackDecodeCache,
     koeOptions: KoeOptions
-) : TextWebSocketHandler() {
+) : AbstractWebSocketHandler() {
 
     // userId <-> shardCount
     val contextMap = ConcurrentHashMap<String, SocketContext>()
 
     @Suppress("LeakingThis")
-    private val handlers = WebSocketHandlers()
+    private val handlers = WebSocketHandlers(trackDecodeCache)
     private val resumableSessions = mutableMapOf<String, SocketContext>()
     private val koe = Koe.koe(koeOptions)
 
@@ -85,8 +99,11 @@ class SocketServer(
             serverConfig,
             session,
             this,
+            scheduler,
             userId,
-            koe.newClient(userId.toLong())
+            koe.newClient(userId.toLong()),
+            session.attributes[MessageEncoding.ATTRIBUTE] as? MessageEncoding ?: MessageEncoding.JSON,
+            liveStreamHub
         )
 
         if (clientName != null) {
@@ -132,18 +149,26 @@ class SocketServer(
     }
 
     override fun handleTextMessage(session: WebSocketSession?, message: TextMessage?) {
+        handleMessage(session!!, message!!)
+    }
+
+    override fun handleBinaryMessage(session: WebSocketSession?, message: BinaryMessage?) {
+        handleMessage(session!!, message!!)
+    }
+
+    private fun handleMessage(session: WebSocketSession, message: WebSocketMessage<*>) {
         try {
-            handleTextMessageSafe(session!!, message!!)
+            handleMessageSafe(session, message)
         } catch (e: Exception) {
             log.error("Exception while handling websocket message", e)
         }
 
     }
 
-    private fun handleTextMessageSafe(session: WebSocketSession, message: TextMessage) {
-        val json = JSONObject(message.payload)
+    private fun handleMessageSafe(session: WebSocketSession, message: WebSocketMessage<*>) {
+        val op = MessageEncoding.decode(message)
 
-        log.info(message.payload)
+        log.info(message.payload as? String ?: op.toString())
 
         if (!session.isOpen) {
             log.error("Ignoring closing websocket: " + session.remoteAddress!!)
@@ -153,23 +178,115 @@ class SocketServer(
         val context = contextMap[session.id]
             ?: throw IllegalStateException("No context for session ID ${session.id}. Broken websocket?")
 
-        when (json.getString("op")) {
+        when (op) {
+            is BatchOp -> handleBatch(context, op)
+            is UnknownOp -> log.warn("Unexpected operation: " + op.op)
+            else -> opExecutor.execute(OpKey(context, op.guildId)) { dispatch(context, op) }
+        }
+    }
+
+    /**
+     * Executes every op of a 'batch' op, then replies with the outcome of each op in a single frame once all of them
+     * are done. Like ops sent on their own, ops of the same guild run in the order of the batch, and so do session
+     * wide ops, but ops of different guilds may run in any order relative to each other.
+     */
+    private fun handleBatch(context: SocketContext, batch: BatchOp) {
+        val results = batch.ops.mapIndexed { i, node ->
+            val result = CompletableFuture<JSONObject>()
+            val op = try {
+                when (val op = MessageEncoding.convert(node, jacksonTypeRef<Op>())) {
+                    is BatchOp -> throw IllegalArgumentException("Batch operations can't be nested")
+                    is UnknownOp -> throw IllegalArgumentException("Unexpected operation: " + op.op)
+                    else -> op
+                }
+            } catch (e: Exception) {
+                log.warn("Invalid operation $i of a batch", e)
+                result.complete(batchResult(e))
+                return@mapIndexed result
+            }
+
+            val run: () -> Unit = {
+                val json = try {
+                    dispatch(context, op)
+                    batchResult(null)
+                } catch (e: Exception) {
+                    log.warn("Exception while handling operation $i of a batch", e)
+                    batchResult(e)
+                }
+
+                result.complete(json)
+            }
+
+            try {
+                opExecutor.execute(OpKey(context, op.guildId), run)
+            } catch (e: RejectedExecutionException) {
+                log.warn("Operation $i of a batch was rejected", e)
+                result.complete(batchResult(e))
+            }
+
+            result
+        }
+
+        CompletableFuture.allOf(*results.toTypedArray()).thenRun {
+            val reply = JSONObject()
+            reply.put("op", "batchResult")
+            reply.put("results", JSONArray(results.map { it.join() }))
+            if (batch.nonce != null) {
+                reply.put("nonce", batch.nonce)
+            }
+
+            context.send(reply)
+        }
+    }
+
+    private fun batchResult(error: Exception?): JSONObject {
+        val json = JSONObject()
+        json.put("success", error == null)
+        if (error != null) {
+            json.put("error", error.message ?: error.toString())
+        }
+
+        return json
+    }
+
+    /**
+     * Handles a single op. Ops still queued when the session shut down are ignored, so they can't create players.
+     */
+    private fun dispatch(context: SocketContext, op: Op) {
+        if (context.closed) {
+            log.debug("Ignoring {} of a closed session", op)
+            return
+        }
+
+        when (op) {
             // @formatter:off
-            "voiceUpdate" -> handlers.voiceUpdate(context, json)
-            "play" -> handlers.play(context, json)
-            "stop" -> handlers.stop(context, json)
-            "pause" -> handlers.pause(context, json)
-            "seek" -> handlers.seek(context, json)
-            "volume" -> handlers.volume(context, json)
-            "destroy" -> handlers.destroy(context, json)
-            "configureResuming" -> handlers.configureResuming(context, json)
-            "equalizer" -> handlers.equalizer(context, json)
-            "filters" -> handlers.filters(context, json.getString("guildId"), message.payload)
-            else -> log.warn("Unexpected operation: " + json.getString("op"))
+            is VoiceUpdateOp -> handlers.voiceUpdate(context, op)
+            is PlayOp -> handlers.play(context, op)
+            is StopOp -> handlers.stop(context, op)
+            is PauseOp -> handlers.pause(context, op)
+            is SeekOp -> handlers.seek(context, op)
+            is VolumeOp -> handlers.volume(context, op)
+            is DestroyOp -> handlers.destroy(context, op)
+            is ConfigureResumingOp -> handlers.configureResuming(context, op)
+            is EqualizerOp -> handlers.equalizer(context, op)
+            is FiltersOp -> handlers.filters(context, op)
+            is BatchOp, is UnknownOp -> throw IllegalArgumentException("Can't dispatch $op")
             // @formatter:on
         }
     }
 
+    /**
+     * Ops of the same guild, or session wide ops, of a session are executed in order.
+     */
+    private data class OpKey(val context: SocketContext, val guildId: String?)
+
+    /**
+     * Drops the ops of the session which did not start yet.
+     */
+    internal fun discardOps(context: SocketContext) {
+        opExecutor.discard { it is OpKey && it.context === context }
+    }
+
     internal fun onSessionResumeTimeout(context: SocketContext) {
         resumableSessions.remove(context.resumeKey)
         context.shutdown()
@@ -178,20 +295,84 @@ class SocketServer(
     internal fun canResume(key: String) = resumableSessions[key]?.stopResumeTimeout()
         ?: false
 
+    internal fun getResumableEncoding(key: String) = resumableSessions[key]?.encoding
+
     companion object {
         private val log = LoggerFactory.getLogger(SocketServer::class.java)
 
-        fun sendPlayerUpdate(socketContext: SocketContext, player: Player) {
-            val state = player.state
-            val connected = socketContext.getMediaConnection(player).gatewayConnection?.isOpen == true
-            state.put("connected", connected)
+        private val skippedPlayerUpdates = Counter.build()
+            .name("lavalink_player_updates_skipped_total")
+            .help("Periodic player updates which were not sent because the player state did not change")
+            .register()
+
+        /**
+         * Sends a player update unless delta updates are enabled and the client can extrapolate the current state.
+         */
+        fun sendPeriodicPlayerUpdate(socketContext: SocketContext, player: Player) {
+            if (hasPlayerStateChanged(socketContext, player)) {
+                sendPlayerUpdate(socketContext, player)
+            }
+        }
 
+        /**
+         * Whether a periodic player update should be sent, always true when delta updates are disabled.
+         */
+        fun hasPlayerStateChanged(socketContext: SocketContext, player: Player): Boolean {
+            val config = socketContext.serverConfig
+            if (!config.playerUpdateDeltas) {
+                return true
+            }
+
+            if (player.hasStateChanged(isConnected(socketContext, player), config.playerUpdateDriftThreshold)) {
+                return true
+            }
+
+            skippedPlayerUpdates.inc()
+            return false
+        }
+
+        fun sendPlayerUpdate(socketContext: SocketContext, player: Player) {
             val json = JSONObject()
             json.put("op", "playerUpdate")
             json.put("guildId", player.guildId)
-            json.put("state", player.state)
+            json.put("state", getPlayerState(socketContext, player))
 
             socketContext.send(json)
         }
+
+        /**
+         * Sends the state of every supplied player in a single 'playerUpdates' frame.
+         */
+        fun sendPlayerUpdates(socketContext: SocketContext, players: Collection<Player>) {
+            if (players.isEmpty()) {
+                return
+            }
+
+            val updates = JSONArray()
+            players.forEach { player ->
+                val update = JSONObject()
+                update.put("guildId", player.guildId)
+                update.put("state", getPlayerState(socketContext, player))
+                updates.put(update)
+            }
+
+            val json = JSONObject()
+            json.put("op", "playerUpdates")
+            json.put("updates", updates)
+
+            socketContext.send(json)
+        }
+
+        private fun getPlayerState(socketContext: SocketContext, player: Player): JSONObject {
+            val state = player.state
+            val connected = isConnected(socketContext, player)
+            player.onStateSent(state, connected)
+            state.put("connected", connected)
+
+            return state
+        }
+
+        private fun isConnected(socketContext: SocketContext, player: Player) =
+            socketContext.getMediaConnection(player).gatewayConnection?.isOpen == true
     }
 }
@@ -35,6 +35,9 @@ import oshi.hardware.HardwareAbstractionLayer;
 import oshi.software.os.OSProcess;
 import oshi.software.os.OperatingSystem;
 
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+
 public class StatsTask implements Runnable {
 
     private static final Logger log = LoggerFactory.getLogger(StatsTask.class);
@@ -89,6 +92,16 @@ public class StatsTask implements Runnable {
         mem.put("reservable", Runtime.getRuntime().maxMemory());
         out.put("memory", mem);
 
+        // In bytes, includes off-heap frame buffers
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if (pool.getName().equals("direct")) {
+                JSONObject direct = new JSONObject();
+                direct.put("used", pool.getMemoryUsed());
+                direct.put("capacity", pool.getTotalCapacity());
+                out.put("directMemory", direct);
+            }
+        }
+
         HardwareAbstractionLayer hal = si.getHardware();
 
 
@@ -0,0 +1,198 @@
+/*
+ *  Copyright (c) 2021 Freya Arbjerg and contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ *
+ */
+
+package lavalink.server.io
+
+import io.prometheus.client.Counter
+import io.undertow.connector.PooledByteBuffer
+import io.undertow.util.ImmediatePooledByteBuffer
+import io.undertow.websockets.WebSocketExtension
+import io.undertow.websockets.core.StreamSourceFrameChannel
+import io.undertow.websockets.core.WebSocketChannel
+import io.undertow.websockets.extensions.ExtensionFunction
+import io.undertow.websockets.extensions.ExtensionHandshake
+import lavalink.server.config.WebsocketCompressionConfig
+import java.io.ByteArrayOutputStream
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.zip.DataFormatException
+import java.util.zip.Deflater
+import java.util.zip.Inflater
+
+/**
+ * Negotiates permessage-deflate (RFC 7692) for the websocket endpoint.
+ *
+ * Unlike Undertow's own implementation, messages smaller than [WebsocketCompressionConfig.minSize] are written as
+ * stored deflate blocks, so small frames like player updates cost a copy rather than a compression pass.
+ * The server never takes over its compression context, so deflaters are borrowed from a shared pool for each
+ * message and idle sessions hold none. An inflater is only created once a client sends a compressed message,
+ * and is kept for the session as clients may take over their context.
+ */
+class ThresholdDeflateHandshake(private val config: WebsocketCompressionConfig) : ExtensionHandshake {
+
+    companion object {
+        const val NAME = "permessage-deflate"
+    }
+
+    override fun getName() = NAME
+
+    override fun accept(extension: WebSocketExtension): WebSocketExtension? {
+        if (extension.name != NAME) return null
+
+        for (parameter in extension.parameters) {
+            when (parameter.name) {
+                "server_no_context_takeover", "client_no_context_takeover", "client_max_window_bits" -> Unit
+                // java.util.zip always uses a 32K window
+                "server_max_window_bits" -> if (parameter.value != null && parameter.value != "15") return null
+                else -> return null
+            }
+        }
+
+        return WebSocketExtension(NAME, listOf(WebSocketExtension.Parameter("server_no_context_takeover", null)))
+    }
+
+    override fun isIncompatible(extensions: List<ExtensionHandshake>) = extensions.any { it.name == NAME }
+
+    override fun create(): ExtensionFunction = ThresholdDeflateFunction(config.level, config.minSize)
+}
+
+class ThresholdDeflateFunction(private val level: Int, private val minSize: Int) : ExtensionFunction {
+
+    companion object {
+        private val TAIL = byteArrayOf(0, 0, 0xFF.toByte(), 0xFF.toByte())
+
+        /* all sessions use the same level, which is changed for stored messages anyway */
+        private val deflaters = ConcurrentLinkedQueue<Deflater>()
+
+        private val bytes = Counter.build()
+            .name("lavalink_websocket_deflate_bytes_total")
+            .help("Bytes of outgoing websocket messages before and after permessage-deflate")
+            .labelNames("type")
+            .register()
+
+        private val messages = Counter.build()
+            .name("lavalink_websocket_deflate_messages_total")
+            .help("Outgoing websocket messages, by whether they were compressed or stored because of their size")
+            .labelNames("mode")
+            .register()
+    }
+
+    private var deflater: Deflater? = null
+    private var inflater: Inflater? = null
+    private val chunk = ByteArray(8192)
+    private var messageStart = true
+
+    override fun hasExtensionOpCode() = false
+
+    override fun writeRsv(rsv: Int) = rsv or ExtensionFunction.RSV1
+
+    override fun transformForWrite(
+        pooledBuffer: PooledByteBuffer,
+        channel: WebSocketChannel,
+        lastFragmentOfMessage: Boolean
+    ): PooledByteBuffer {
+        val input = pooledBuffer.drain()
+        val deflater = deflater ?: (deflaters.poll() ?: Deflater(level, true)).also { deflater = it }
+
+        if (messageStart) {
+            val store = lastFragmentOfMessage && input.size < minSize
+            deflater.setLevel(if (store) Deflater.NO_COMPRESSION else level)
+            messages.labels(if (store) "stored" else "deflate").inc()
+        }
+
+        deflater.setInput(input)
+        val output = ByteArrayOutputStream(input.size + 16)
+        do {
+            val length = deflater.deflate(chunk, 0, chunk.size, Deflater.SYNC_FLUSH)
+            output.write(chunk, 0, length)
+        } while (length == chunk.size)
+
+        var compressed = output.toByteArray()
+        if (lastFragmentOfMessage) {
+            // The flush marker is implied by the end of the message
+            compressed = compressed.copyOf(compressed.size - TAIL.size)
+            deflater.reset()
+            deflaters.offer(deflater)
+            this.deflater = null
+        }
+
+        messageStart = lastFragmentOfMessage
+        bytes.labels("raw").inc(input.size.toDouble())
+        bytes.labels("compressed").inc(compressed.size.toDouble())
+        return ImmediatePooledByteBuffer(ByteBuffer.wrap(compressed))
+    }
+
+    override fun transformForRead(
+        pooledBuffer: PooledByteBuffer,
+        channel: StreamSourceFrameChannel,
+        lastFragmentOfMessage: Boolean
+    ): PooledByteBuffer {
+        if ((channel.rsv and ExtensionFunction.RSV1) == 0) return pooledBuffer
+
+        val input = pooledBuffer.drain()
+        val output = ByteArrayOutputStream(input.size * 2)
+        try {
+            inflate(input, output)
+            if (lastFragmentOfMessage) inflate(TAIL, output)
+        } catch (e: DataFormatException) {
+            throw IOException("Invalid permessage-deflate payload", e)
+        }
+
+        return ImmediatePooledByteBuffer(ByteBuffer.wrap(output.toByteArray()))
+    }
+
+    private fun inflate(input: ByteArray, output: ByteArrayOutputStream) {
+        val inflater = inflater ?: Inflater(true).also { inflater = it }
+        inflater.setInput(input)
+        while (true) {
+            if (inflater.finished()) {
+                // A final block ends the deflate stream, anything after it starts a new one
+                val remaining = inflater.remaining
+                inflater.reset()
+                if (remaining == 0) break
+                inflater.setInput(input, input.size - remaining, remaining)
+            }
+
+            val length = inflater.inflate(chunk)
+            output.write(chunk, 0, length)
+            if (length == 0 && !inflater.finished()) break
+        }
+    }
+
+    override fun dispose() {
+        deflater?.end()
+        deflater = null
+        inflater?.end()
+        inflater = null
+    }
+
+    private fun PooledByteBuffer.drain(): ByteArray {
+        try {
+            val buf = buffer
+            return ByteArray(buf.remaining()).also { buf.get(it) }
+        } finally {
+            close()
+        }
+    }
+}
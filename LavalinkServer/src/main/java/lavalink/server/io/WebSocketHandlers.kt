@@ -24,16 +24,14 @@
 package lavalink.server.io
 
 import com.sedmelluq.discord.lavaplayer.track.TrackMarker
+import lavalink.server.player.TrackDecodeCache
 import lavalink.server.player.TrackEndMarkerHandler
 import lavalink.server.player.filters.FilterChain
-import lavalink.server.player.filters.configs.Band
-import lavalink.server.util.Util
 import moe.kyokobot.koe.VoiceServerInfo
-import org.json.JSONObject
 import org.slf4j.Logger
 import org.slf4j.LoggerFactory
 
-class WebSocketHandlers {
+class WebSocketHandlers(private val trackDecodeCache: TrackDecodeCache) {
     companion object {
         private val log: Logger = LoggerFactory.getLogger(WebSocketHandlers::class.java)
     }
@@ -41,40 +39,35 @@ class WebSocketHandlers {
     private var loggedVolumeDeprecationWarning = false
     private var loggedEqualizerDeprecationWarning = false
 
-    fun voiceUpdate(context: SocketContext, json: JSONObject) {
-        val sessionId = json.getString("sessionId")
-        val guildId = json.getLong("guildId")
-
-        val event = json.getJSONObject("event")
-        val endpoint: String? = event.optString("endpoint")
-        val token: String = event.getString("token")
-
+    fun voiceUpdate(context: SocketContext, op: VoiceUpdateOp) {
         //discord sometimes send a partial server update missing the endpoint, which can be ignored.
-        endpoint ?: return
+        val endpoint = op.event.endpoint ?: return
 
-        val player = context.getPlayer(guildId)
+        val player = context.getPlayer(op.guildId.toLong())
         val conn = context.getMediaConnection(player)
-        conn.connect(VoiceServerInfo(sessionId, endpoint, token))
+        conn.connect(VoiceServerInfo(op.sessionId, endpoint, op.event.token))
         player.provideTo(conn)
     }
 
-    fun play(context: SocketContext, json: JSONObject) {
-        val player = context.getPlayer(json.getString("guildId"))
-        val noReplace = json.optBoolean("noReplace", false)
+    fun play(context: SocketContext, op: PlayOp) {
+        val player = context.getPlayer(op.guildId)
 
-        if (noReplace && player.playingTrack != null) {
+        if (op.noReplace && player.playingTrack != null) {
             log.info("Skipping play request because of noReplace")
             return
         }
 
-        val track = Util.decodeAudioTrack(context.audioPlayerManager, json.getString("track"))
+        val track = when (val encoded = op.track) {
+            is ByteArray -> trackDecodeCache.decode(context.audioPlayerManager, encoded)
+            else -> trackDecodeCache.decode(context.audioPlayerManager, encoded.toString())
+        }
 
-        if (json.has("startTime")) {
-            track.position = json.getLong("startTime")
+        if (op.startTime != null) {
+            track.position = op.startTime
         }
 
-        player.setPause(json.optBoolean("pause", false))
-        if (json.has("volume")) {
+        player.setPause(op.pause)
+        if (op.volume != null) {
             if (!loggedVolumeDeprecationWarning) log.warn(
                 "The volume property in the play operation has been deprecated" +
                     "and will be removed in v4. Please configure a filter instead. Note that the new filter takes a " +
@@ -82,48 +75,43 @@ class WebSocketHandlers {
             )
             loggedVolumeDeprecationWarning = true
             val filters = player.filters ?: FilterChain()
-            filters.volume = json.getFloat("volume") / 100
+            filters.volume = op.volume / 100
             player.filters = filters
         }
 
-        if (json.has("endTime")) {
-            val stopTime = json.getLong("endTime")
-            if (stopTime > 0) {
-                val handler = TrackEndMarkerHandler(player)
-                val marker = TrackMarker(stopTime, handler)
-                track.setMarker(marker)
-            }
-        }
+        val endMarker = if (op.endTime != null && op.endTime > 0) {
+            TrackMarker(op.endTime, TrackEndMarkerHandler(player))
+        } else null
 
-        player.play(track)
+        player.play(track, endMarker)
 
         val conn = context.getMediaConnection(player)
-        context.getPlayer(json.getString("guildId")).provideTo(conn)
+        player.provideTo(conn)
     }
 
-    fun stop(context: SocketContext, json: JSONObject) {
-        val player = context.getPlayer(json.getString("guildId"))
+    fun stop(context: SocketContext, op: StopOp) {
+        val player = context.getPlayer(op.guildId)
         player.stop()
     }
 
-    fun pause(context: SocketContext, json: JSONObject) {
-        val player = context.getPlayer(json.getString("guildId"))
-        player.setPause(json.getBoolean("pause"))
+    fun pause(context: SocketContext, op: PauseOp) {
+        val player = context.getPlayer(op.guildId)
+        player.setPause(op.pause)
         SocketServer.sendPlayerUpdate(context, player)
     }
 
-    fun seek(context: SocketContext, json: JSONObject) {
-        val player = context.getPlayer(json.getString("guildId"))
-        player.seekTo(json.getLong("position"))
+    fun seek(context: SocketContext, op: SeekOp) {
+        val player = context.getPlayer(op.guildId)
+        player.seekTo(op.position)
         SocketServer.sendPlayerUpdate(context, player)
     }
 
-    fun volume(context: SocketContext, json: JSONObject) {
-        val player = context.getPlayer(json.getString("guildId"))
-        player.setVolume(json.getInt("volume"))
+    fun volume(context: SocketContext, op: VolumeOp) {
+        val player = context.getPlayer(op.guildId)
+        player.setVolume(op.volume)
     }
 
-    fun equalizer(context: SocketContext, json: JSONObject) {
+    fun equalizer(context: SocketContext, op: EqualizerOp) {
         if (!loggedEqualizerDeprecationWarning) log.warn(
             "The 'equalizer' op has been deprecated in favour of the " +
                 "'filters' op. Please switch to use that one, as this op will get removed in v4."
@@ -131,35 +119,23 @@ class WebSocketHandlers {
 
         loggedEqualizerDeprecationWarning = true
 
-        val player = context.getPlayer(json.getString("guildId"))
-        val list = mutableListOf<Band>()
-        json.getJSONArray("bands").forEach { b ->
-            val band = b as JSONObject
-            list.add(Band(band.getInt("band"), band.getFloat("gain")))
-        }
-
+        val player = context.getPlayer(op.guildId)
         val filters = player.filters ?: FilterChain()
-        filters.equalizer = list
+        filters.equalizer = op.bands
         player.filters = filters
     }
 
-    fun destroy(context: SocketContext, json: JSONObject) {
-        context.destroy(json.getLong("guildId"))
+    fun destroy(context: SocketContext, op: DestroyOp) {
+        context.destroy(op.guildId.toLong())
     }
 
-    fun configureResuming(context: SocketContext, json: JSONObject) {
-        context.resumeKey = json.optString("key", null)
-        if (json.has("timeout")) context.resumeTimeout = json.getLong("timeout")
+    fun configureResuming(context: SocketContext, op: ConfigureResumingOp) {
+        context.resumeKey = op.key
+        if (op.timeout != null) context.resumeTimeout = op.timeout
     }
 
-    fun filters(context: SocketContext, guildId: String, json: String) {
-        val player = context.getPlayer(guildId)
-
-        try {
-            val filters = FilterChain.parse(json)
-            player.filters = filters
-        } catch (ex: Exception) {
-            log.error("Error while parsing filters.", ex)
-        }
+    fun filters(context: SocketContext, op: FiltersOp) {
+        val player = context.getPlayer(op.guildId)
+        player.filters = op.toFilterChain()
     }
 }
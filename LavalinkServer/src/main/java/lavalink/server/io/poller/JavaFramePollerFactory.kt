@@ -0,0 +1,74 @@
+/*
+ *  Copyright (c) 2021 Freya Arbjerg and contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ *
+ */
+
+package lavalink.server.io.poller
+
+import moe.kyokobot.koe.MediaConnection
+import moe.kyokobot.koe.codec.Codec
+import moe.kyokobot.koe.codec.FramePoller
+import moe.kyokobot.koe.codec.FramePollerFactory
+import moe.kyokobot.koe.codec.OpusCodec
+
+/**
+ * Frame poller factory for platforms without the native udp-queue library.
+ *
+ * Opus packets are prepared ahead of time on the Netty event loop and sent by dedicated high priority threads,
+ * each serving up to [connectionsPerThread] connections. Once [maxThreads] threads exist, connections are spread
+ * over them regardless.
+ */
+class JavaFramePollerFactory(
+    bufferDurationMs: Int,
+    private val connectionsPerThread: Int,
+    private val maxThreads: Int = Int.MAX_VALUE,
+    private val name: String = "lavalink-frame-sender"
+) : FramePollerFactory {
+
+    /* one packet every 20ms */
+    private val queueCapacity = (bufferDurationMs / 20).coerceAtLeast(2)
+    private val senders = mutableListOf<PacketSender>()
+
+    override fun createFramePoller(codec: Codec, connection: MediaConnection): FramePoller? {
+        if (codec !is OpusCodec) return null
+        return JavaOpusFramePoller(connection, this, queueCapacity)
+    }
+
+    /**
+     * Registers a queue with the least loaded sender thread, starting a new one if all are full.
+     */
+    @Synchronized
+    internal fun register(queue: PacketQueue) {
+        val sender = senders.filter { it.size < connectionsPerThread || senders.size >= maxThreads }
+            .minByOrNull { it.size }
+            ?: PacketSender("$name-${senders.size + 1}").also {
+                senders.add(it)
+                it.start()
+            }
+
+        sender.add(queue)
+    }
+
+    @Synchronized
+    internal fun unregister(queue: PacketQueue) {
+        senders.forEach { it.remove(queue) }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ *  Copyright (c) 2021 Freya Arbjerg and contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ *
+ */
+
+package lavalink.server.io.poller
+
+import moe.kyokobot.koe.MediaConnection
+import moe.kyokobot.koe.codec.AbstractFramePoller
+import moe.kyokobot.koe.codec.OpusCodec
+import moe.kyokobot.koe.internal.handler.DiscordUDPConnection
+import moe.kyokobot.koe.media.IntReference
+import org.slf4j.LoggerFactory
+import java.util.concurrent.TimeUnit
+
+/**
+ * Keeps the packet queue of a connection filled from the Netty event loop, the packets are sent by a [PacketSender].
+ */
+internal class JavaOpusFramePoller(
+    connection: MediaConnection,
+    private val factory: JavaFramePollerFactory,
+    capacity: Int
+) : AbstractFramePoller(connection) {
+
+    companion object {
+        private val log = LoggerFactory.getLogger(JavaOpusFramePoller::class.java)
+
+        /* The queue holds several frames, so it does not need to be topped up every frame */
+        private const val POLL_INTERVAL_MS = 40L
+    }
+
+    private val queue = PacketQueue(capacity)
+    private val timestamp = IntReference()
+
+    override fun start() {
+        check(!polling) { "Polling already started!" }
+        polling = true
+        factory.register(queue)
+        eventLoop.execute(::pollFrames)
+    }
+
+    override fun stop() {
+        if (!polling) return
+        polling = false
+        factory.unregister(queue)
+        queue.clear()
+    }
+
+    private fun pollFrames() {
+        if (!polling) return
+
+        try {
+            fill()
+        } catch (e: Exception) {
+            log.error("Polling frames failed", e)
+        }
+
+        eventLoop.schedule(::pollFrames, POLL_INTERVAL_MS, TimeUnit.MILLISECONDS)
+    }
+
+    private fun fill() {
+        val handler = connection.connectionHandler as? DiscordUDPConnection ?: return
+        val sender = connection.audioSender ?: return
+        val codec = OpusCodec.INSTANCE
+        queue.address = handler.serverAddress
+
+        repeat(queue.remaining) {
+            if (!sender.canSendFrame(codec)) return
+
+            val buf = allocator.buffer()
+            try {
+                val start = buf.writerIndex()
+                sender.retrieve(codec, buf, timestamp)
+                val len = buf.writerIndex() - start
+                if (len == 0) return@repeat
+
+                val packet = handler.createPacket(OpusCodec.PAYLOAD_TYPE, timestamp.get(), buf, len, false) ?: return@repeat
+                queue.offer(packet)
+                packet.release()
+            } finally {
+                buf.release()
+            }
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ *  Copyright (c) 2021 Freya Arbjerg and contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ *
+ */
+
+package lavalink.server.io.poller
+
+import io.netty.buffer.ByteBuf
+import java.net.SocketAddress
+import java.nio.ByteBuffer
+import java.util.concurrent.ArrayBlockingQueue
+
+/**
+ * Packets of one connection waiting to be sent, backed by a fixed set of direct buffers which are reused.
+ */
+internal class PacketQueue(capacity: Int) {
+
+    companion object {
+        /* Large enough for any opus packet including RTP header and encryption overhead */
+        private const val PACKET_SIZE = 2048
+    }
+
+    private val pending = ArrayBlockingQueue<ByteBuffer>(capacity)
+    private val free = ArrayBlockingQueue<ByteBuffer>(capacity)
+
+    @Volatile
+    var address: SocketAddress? = null
+
+    init {
+        repeat(capacity) { free.add(ByteBuffer.allocateDirect(PACKET_SIZE)) }
+    }
+
+    /**
+     * Amount of packets that can be queued right now.
+     */
+    val remaining: Int
+        get() = free.size
+
+    /**
+     * Copies a packet into a free buffer and queues it.
+     *
+     * @return false if the queue is full or the packet is too large.
+     */
+    fun offer(packet: ByteBuf): Boolean {
+        if (packet.readableBytes() > PACKET_SIZE) return false
+        val buffer = free.poll() ?: return false
+
+        buffer.clear()
+        buffer.limit(packet.readableBytes())
+        packet.getBytes(packet.readerIndex(), buffer)
+        buffer.flip()
+        pending.add(buffer)
+        return true
+    }
+
+    /**
+     * Returns the oldest packet, which must be handed back with [recycle] once it is sent.
+     */
+    fun poll(): ByteBuffer? = pending.poll()
+
+    fun recycle(buffer: ByteBuffer) {
+        free.offer(buffer)
+    }
+
+    fun clear() {
+        while (true) {
+            recycle(pending.poll() ?: return)
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ *  Copyright (c) 2021 Freya Arbjerg and contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ *
+ */
+
+package lavalink.server.io.poller
+
+import org.slf4j.LoggerFactory
+import java.net.InetSocketAddress
+import java.nio.channels.DatagramChannel
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.locks.LockSupport
+
+/**
+ * Sends one packet of every registered queue each 20ms from a dedicated thread.
+ *
+ * When the thread falls behind, for example after a GC pause, the missed packets are sent right away so the
+ * client side jitter buffer can cover the gap, instead of the whole stream being delayed.
+ * While no queues are registered the thread parks until one is added.
+ */
+internal class PacketSender(name: String) : Thread(name) {
+
+    companion object {
+        private val log = LoggerFactory.getLogger(PacketSender::class.java)
+        private val FRAME_NANOS = TimeUnit.MILLISECONDS.toNanos(20)
+
+        /* Never send more than this many packets per queue in one go, about a second of audio */
+        private const val MAX_CATCH_UP = 50
+    }
+
+    private val queues = CopyOnWriteArrayList<PacketQueue>()
+    private val channel = DatagramChannel.open().bind(InetSocketAddress(0))
+
+    init {
+        isDaemon = true
+        priority = MAX_PRIORITY
+    }
+
+    val size: Int
+        get() = queues.size
+
+    fun add(queue: PacketQueue) {
+        queues.add(queue)
+        LockSupport.unpark(this)
+    }
+
+    fun remove(queue: PacketQueue) {
+        queues.remove(queue)
+    }
+
+    override fun run() {
+        var nextTick = System.nanoTime()
+        while (true) {
+            if (queues.isEmpty()) {
+                // a permit from add() makes this return right away, so no registration is missed
+                LockSupport.park(this)
+                nextTick = System.nanoTime()
+                continue
+            }
+
+            val now = System.nanoTime()
+            val due = ((now - nextTick) / FRAME_NANOS + 1).coerceAtLeast(1)
+            val sent = due.coerceAtMost(MAX_CATCH_UP.toLong())
+
+            for (queue in queues) {
+                repeat(sent.toInt()) { send(queue) }
+            }
+
+            // when too far behind to catch up, continue from now
+            nextTick = if (due > sent) now + FRAME_NANOS else nextTick + FRAME_NANOS * sent
+            val delay = nextTick - System.nanoTime()
+            if (delay > 0) LockSupport.parkNanos(delay)
+        }
+    }
+
+    private fun send(queue: PacketQueue) {
+        val packet = queue.poll() ?: return
+        try {
+            channel.send(packet, queue.address ?: return)
+        } catch (e: Exception) {
+            log.error("Failed to send packet", e)
+        } finally {
+            queue.recycle(packet)
+        }
+    }
+}
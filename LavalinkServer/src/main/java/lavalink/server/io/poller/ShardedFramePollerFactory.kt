@@ -0,0 +1,84 @@
+/*
+ *  Copyright (c) 2021 Freya Arbjerg and contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ *
+ */
+
+package lavalink.server.io.poller
+
+import io.prometheus.client.Gauge
+import moe.kyokobot.koe.MediaConnection
+import moe.kyokobot.koe.codec.Codec
+import moe.kyokobot.koe.codec.FramePoller
+import moe.kyokobot.koe.codec.FramePollerFactory
+
+/**
+ * Assigns every voice connection to a fixed shard based on its guild id, each shard having its own frame poller
+ * factory and with it its own sending threads.
+ */
+class ShardedFramePollerFactory(private val shards: List<FramePollerFactory>) : FramePollerFactory {
+
+    companion object {
+        private val activePollers = Gauge.build()
+            .name("lavalink_voice_shard_connections")
+            .help("Voice connections currently sending audio, by send shard")
+            .labelNames("shard")
+            .register()
+
+        /**
+         * Guild ids are snowflakes whose low bits hold worker and sequence ids, so they are mixed with the
+         * MurmurHash3 finalizer before picking a shard to spread guilds evenly.
+         */
+        internal fun shardOf(guildId: Long, shards: Int): Int {
+            var h = guildId
+            h = h xor (h ushr 33)
+            h *= -0xae502812aa7333L
+            h = h xor (h ushr 33)
+            h *= -0x3b314601e57a13adL
+            h = h xor (h ushr 33)
+            return Math.floorMod(h, shards.toLong()).toInt()
+        }
+    }
+
+    init {
+        require(shards.isNotEmpty()) { "At least one shard is required" }
+    }
+
+    override fun createFramePoller(codec: Codec, connection: MediaConnection): FramePoller? {
+        val shard = shardOf(connection.guildId, shards.size)
+        val poller = shards[shard].createFramePoller(codec, connection) ?: return null
+        return ShardFramePoller(poller, activePollers.labels(shard.toString()))
+    }
+
+    private class ShardFramePoller(
+        private val delegate: FramePoller,
+        private val active: Gauge.Child
+    ) : FramePoller by delegate {
+        override fun start() {
+            delegate.start()
+            active.inc()
+        }
+
+        override fun stop() {
+            if (delegate.isPolling) active.dec()
+            delegate.stop()
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ *  Copyright (c) 2021 Freya Arbjerg and contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ *
+ */
+package lavalink.server.metrics;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.GaugeMetricFamily;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Exports how busy the threads lavaplayer decodes, filters and encodes tracks on are.
+ * <p>
+ * Every playing track has its own playback thread, which mostly waits for its frame buffer to drain. Utilisation is
+ * measured as thread CPU time between two scrapes, so a node is close to saturation when the combined utilisation
+ * nears 1 or single threads near 1 and can not keep up with realtime anymore.
+ * <p>
+ * Playback itself still runs on one lavaplayer thread per playing track. Those threads block inside the decoders of
+ * each source and container, which can't be advanced in slices from a shared worker pool, so these metrics are meant
+ * to tell when a node is saturated rather than to tune a scheduler.
+ */
+public class PlaybackThreadsExports extends Collector {
+
+    /* lavaplayer's daemon thread factory names its threads lava-daemon-pool-<pool>-<index>-thread-<counter> */
+    private static final String PLAYBACK_THREAD_PREFIX = "lava-daemon-pool-playback-";
+
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private Map<Long, Long> lastCpuTimes = new HashMap<>();
+    private long lastScrape = System.nanoTime();
+
+    @Override
+    public synchronized List<MetricFamilySamples> collect() {
+        long now = System.nanoTime();
+        long elapsed = Math.max(1, now - lastScrape);
+        lastScrape = now;
+
+        boolean cpuTimeSupported = threads.isThreadCpuTimeSupported() && threads.isThreadCpuTimeEnabled();
+        Map<Long, Long> cpuTimes = new HashMap<>();
+        int count = 0;
+        double total = 0;
+        double max = 0;
+
+        for (ThreadInfo info : threads.getThreadInfo(threads.getAllThreadIds(), 0)) {
+            if (info == null || !info.getThreadName().startsWith(PLAYBACK_THREAD_PREFIX)) {
+                continue;
+            }
+
+            count++;
+            if (!cpuTimeSupported) {
+                continue;
+            }
+
+            long cpuTime = threads.getThreadCpuTime(info.getThreadId());
+            if (cpuTime < 0) {
+                continue;
+            }
+
+            cpuTimes.put(info.getThreadId(), cpuTime);
+            double utilisation = Math.min(1, (cpuTime - lastCpuTimes.getOrDefault(info.getThreadId(), 0L)) / (double) elapsed);
+            total += utilisation;
+            max = Math.max(max, utilisation);
+        }
+
+        lastCpuTimes = cpuTimes;
+
+        List<MetricFamilySamples> samples = new ArrayList<>();
+        samples.add(new GaugeMetricFamily(
+            "lavalink_playback_threads",
+            "Threads playing tracks",
+            count
+        ));
+
+        if (cpuTimeSupported) {
+            samples.add(new GaugeMetricFamily(
+                "lavalink_playback_cpu_utilisation",
+                "Share of all cores used by playback threads since the last scrape",
+                total / Runtime.getRuntime().availableProcessors()
+            ));
+            samples.add(new GaugeMetricFamily(
+                "lavalink_playback_thread_utilisation_max",
+                "Highest share of a core used by a single playback thread since the last scrape",
+                max
+            ));
+        }
+
+        return samples;
+    }
+}
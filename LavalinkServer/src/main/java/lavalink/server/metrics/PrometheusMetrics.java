@@ -57,6 +57,9 @@ public class PrometheusMetrics {
         //jvm (hotspot) metrics
         DefaultExports.initialize();
 
+        //playback thread utilisation
+        new PlaybackThreadsExports().register();
+
         //gc pause buckets
         final GcNotificationListener gcNotificationListener = new GcNotificationListener();
         for (GarbageCollectorMXBean gcBean : ManagementFactory.getGarbageCollectorMXBeans()) {
@@ -0,0 +1,126 @@
+/*
+ *  Copyright (c) 2021 Freya Arbjerg and contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ *
+ */
+
+package lavalink.server.player;
+
+import com.sedmelluq.discord.lavaplayer.format.AudioDataFormat;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
+import com.sedmelluq.discord.lavaplayer.track.playback.AudioFrameBuffer;
+import com.sedmelluq.discord.lavaplayer.track.playback.AudioFrameBufferFactory;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Frame buffer factory which lets every player pick the duration of its frame buffers.
+ * <p>
+ * Lavaplayer creates the frame buffer of a track on the thread that starts playing it, using one duration for all
+ * players. Players start their tracks through {@link #create(int, Runnable)} to use their own duration instead.
+ */
+public class AdaptiveFrameBufferFactory implements AudioFrameBufferFactory {
+
+    /* More lost frames than this in the last minute grow the buffer, 100ms of audio */
+    private static final int LOSS_THRESHOLD = 5;
+
+    private static final ThreadLocal<Request> pending = new ThreadLocal<>();
+
+    private final AudioFrameBufferFactory delegate;
+    private final int initialDuration;
+    private final int minDuration;
+    private final int maxDuration;
+
+    public AdaptiveFrameBufferFactory(AudioFrameBufferFactory delegate, int initialDuration, int minDuration, int maxDuration) {
+        this.delegate = delegate;
+        this.minDuration = minDuration;
+        this.maxDuration = Math.max(minDuration, maxDuration);
+        this.initialDuration = clamp(initialDuration);
+    }
+
+    @Override
+    public AudioFrameBuffer create(int bufferDuration, AudioDataFormat format, AtomicBoolean stopping) {
+        Request request = pending.get();
+        if (request == null) {
+            return delegate.create(bufferDuration, format, stopping);
+        }
+
+        request.buffer = delegate.create(request.duration, format, stopping);
+        return request.buffer;
+    }
+
+    /**
+     * Runs the action, which starts a track, with frame buffers of the given duration.
+     *
+     * @return The frame buffer created by the action, or null if it did not create one.
+     */
+    AudioFrameBuffer create(int duration, Runnable action) {
+        Request request = new Request(duration);
+        pending.set(request);
+        try {
+            action.run();
+        } finally {
+            pending.remove();
+        }
+
+        return request.buffer;
+    }
+
+    /**
+     * Picks the buffer duration for the next track of a player. Local files need little buffering, otherwise the
+     * buffer grows after a minute with audio loss and shrinks after a minute without.
+     *
+     * @param current The duration used for the previous track, or 0 if there was none.
+     */
+    int nextDuration(int current, AudioTrack track, AudioLossCounter audioLossCounter) {
+        if (track.getSourceManager() != null && "local".equals(track.getSourceManager().getSourceName())) {
+            return minDuration;
+        }
+
+        int duration = current > 0 ? current : initialDuration;
+        if (audioLossCounter.isDataUsable()) {
+            if (audioLossCounter.getLastMinuteLoss() > LOSS_THRESHOLD) {
+                duration *= 2;
+            } else if (audioLossCounter.getLastMinuteLoss() == 0) {
+                duration = duration * 3 / 4;
+            }
+        }
+
+        /* live streams have no way to make up for a slow source later on */
+        if (track.getInfo().isStream) {
+            duration = Math.max(duration, initialDuration);
+        }
+
+        return clamp(duration);
+    }
+
+    private int clamp(int duration) {
+        return Math.max(minDuration, Math.min(maxDuration, duration));
+    }
+
+    private static class Request {
+        private final int duration;
+        private AudioFrameBuffer buffer;
+
+        private Request(int duration) {
+            this.duration = duration;
+        }
+    }
+}
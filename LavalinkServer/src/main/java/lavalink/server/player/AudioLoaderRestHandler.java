@@ -20,33 +20,51 @@
  *  SOFTWARE.
  *
  */
-
 package lavalink.server.player;
 
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.sedmelluq.discord.lavaplayer.player.AudioPlayerManager;
 import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
 import com.sedmelluq.discord.lavaplayer.track.AudioTrackInfo;
 import lavalink.server.util.Util;
 import org.json.JSONArray;
-import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import javax.annotation.Nullable;
 import javax.servlet.http.HttpServletRequest;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
 
+/**
+ * Responses are written straight to the response stream one track at a time, so large playlists are never held as
+ * a whole JSON tree or string.
+ */
 @RestController
 public class AudioLoaderRestHandler {
 
     private static final Logger log = LoggerFactory.getLogger(AudioLoaderRestHandler.class);
+    private static final JsonFactory jsonFactory = new JsonFactory().disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+
     private final AudioPlayerManager audioPlayerManager;
+    private final LoadResultCache loadResultCache;
+    private final LoadCoalescer loadCoalescer;
+    private final TrackDecodeCache trackDecodeCache;
 
-    public AudioLoaderRestHandler(AudioPlayerManager audioPlayerManager) {
+    public AudioLoaderRestHandler(AudioPlayerManager audioPlayerManager, LoadResultCache loadResultCache,
+                                  LoadCoalescer loadCoalescer, TrackDecodeCache trackDecodeCache) {
         this.audioPlayerManager = audioPlayerManager;
+        this.loadResultCache = loadResultCache;
+        this.loadCoalescer = loadCoalescer;
+        this.trackDecodeCache = trackDecodeCache;
     }
 
     private void log(HttpServletRequest request) {
@@ -54,105 +72,147 @@ public class AudioLoaderRestHandler {
         log.info("GET " + path);
     }
 
-    private JSONObject trackToJSON(AudioTrack audioTrack) {
+    private void writeTrackInfo(JsonGenerator json, AudioTrack audioTrack) throws IOException {
         AudioTrackInfo trackInfo = audioTrack.getInfo();
 
-        return new JSONObject()
-            .put("title", trackInfo.title)
-            .put("author", trackInfo.author)
-            .put("length", trackInfo.length)
-            .put("identifier", trackInfo.identifier)
-            .put("uri", trackInfo.uri)
-            .put("isStream", trackInfo.isStream)
-            .put("isSeekable", audioTrack.isSeekable())
-            .put("source", audioTrack.getSourceManager().getSourceName())
-            .put("position", audioTrack.getPosition())
-            // freyacodes/lavaplayer@97424f0
-            .put("sourceName", audioTrack.getSourceManager() == null ? null : audioTrack.getSourceManager().getSourceName());
+        json.writeStartObject();
+        writeStringField(json, "title", trackInfo.title);
+        writeStringField(json, "author", trackInfo.author);
+        json.writeNumberField("length", trackInfo.length);
+        writeStringField(json, "identifier", trackInfo.identifier);
+        writeStringField(json, "uri", trackInfo.uri);
+        json.writeBooleanField("isStream", trackInfo.isStream);
+        json.writeBooleanField("isSeekable", audioTrack.isSeekable());
+        /* checked before writing anything, a failure halfway would leave a truncated response */
+        String sourceName = audioTrack.getSourceManager() == null ? null : audioTrack.getSourceManager().getSourceName();
+        writeStringField(json, "source", sourceName);
+        json.writeNumberField("position", audioTrack.getPosition());
+        // freyacodes/lavaplayer@97424f0
+        writeStringField(json, "sourceName", sourceName);
+        json.writeEndObject();
     }
 
-    private JSONObject encodeLoadResult(LoadResult result) {
-        JSONObject json = new JSONObject();
-        JSONObject playlist = new JSONObject();
-        JSONArray tracks = new JSONArray();
+    private void writeLoadResult(JsonGenerator json, LoadResult result) throws IOException {
+        json.writeStartObject();
+
+        json.writeObjectFieldStart("playlistInfo");
+        writeStringField(json, "name", result.playlistName);
+        if (result.selectedTrack != null) {
+            json.writeNumberField("selectedTrack", result.selectedTrack);
+        }
+        json.writeEndObject();
 
-        result.tracks.forEach(track -> {
-            JSONObject object = new JSONObject();
-            object.put("info", trackToJSON(track));
+        json.writeStringField("loadType", result.loadResultType.name());
 
+        json.writeArrayFieldStart("tracks");
+        for (AudioTrack track : result.tracks) {
+            String encoded;
             try {
-                String encoded = Util.encodeAudioTrack(audioPlayerManager, track);
-                object.put("track", encoded);
-                tracks.put(object);
+                encoded = Util.encodeAudioTrack(audioPlayerManager, track);
             } catch (IOException e) {
                 log.warn("Failed to encode a track {}, skipping", track.getIdentifier(), e);
+                continue;
             }
-        });
-
-        playlist.put("name", result.playlistName);
-        playlist.put("selectedTrack", result.selectedTrack);
 
-        json.put("playlistInfo", playlist);
-        json.put("loadType", result.loadResultType);
-        json.put("tracks", tracks);
+            json.writeStartObject();
+            json.writeFieldName("info");
+            writeTrackInfo(json, track);
+            json.writeStringField("track", encoded);
+            json.writeEndObject();
+        }
+        json.writeEndArray();
 
         if (result.loadResultType == ResultStatus.LOAD_FAILED && result.exception != null) {
-            JSONObject exception = new JSONObject();
-            exception.put("message", result.exception.getLocalizedMessage());
-            exception.put("severity", result.exception.severity.toString());
+            json.writeObjectFieldStart("exception");
+            writeStringField(json, "message", result.exception.getLocalizedMessage());
+            json.writeStringField("severity", result.exception.severity.toString());
+            json.writeEndObject();
 
-            json.put("exception", exception);
             log.error("Track loading failed", result.exception);
         }
 
-        return json;
+        json.writeEndObject();
+    }
+
+    /**
+     * Null values are left out, like a JSONObject does.
+     */
+    private static void writeStringField(JsonGenerator json, String name, @Nullable String value) throws IOException {
+        if (value != null) {
+            json.writeStringField(name, value);
+        }
+    }
+
+    private static ResponseEntity<StreamingResponseBody> stream(JsonWriter writer) {
+        return ResponseEntity.ok()
+            .contentType(MediaType.APPLICATION_JSON)
+            .body(out -> {
+                try (JsonGenerator json = jsonFactory.createGenerator(out)) {
+                    writer.write(json);
+                }
+            });
     }
 
     @GetMapping(value = "/loadtracks", produces = "application/json")
     @ResponseBody
-    public CompletionStage<ResponseEntity<String>> getLoadTracks(
+    public CompletionStage<ResponseEntity<StreamingResponseBody>> getLoadTracks(
         @RequestParam String identifier) {
         log.info("Got request to load for identifier \"{}\"", identifier);
 
-        return new AudioLoader(audioPlayerManager).load(identifier)
-            .thenApply(this::encodeLoadResult)
-            .thenApply(loadResultJson -> new ResponseEntity<>(loadResultJson.toString(), HttpStatus.OK));
+        LoadResult cached = loadResultCache.get(identifier);
+        CompletionStage<LoadResult> result = cached != null
+            ? CompletableFuture.completedFuture(cached)
+            : loadCoalescer.load(identifier, () -> loadResultCache.peek(identifier),
+                () -> new AudioLoader(audioPlayerManager).load(identifier)
+                    .thenApply(loaded -> {
+                        loadResultCache.put(identifier, loaded);
+                        return loaded;
+                    }));
+
+        return result.thenApply(loadResult -> stream(json -> writeLoadResult(json, loadResult)));
     }
 
     @GetMapping(value = "/decodetrack", produces = "application/json")
     @ResponseBody
-    public ResponseEntity<String> getDecodeTrack(HttpServletRequest request, @RequestParam String track)
+    public ResponseEntity<StreamingResponseBody> getDecodeTrack(HttpServletRequest request, @RequestParam String track)
         throws IOException {
 
         log(request);
 
-        AudioTrack audioTrack = Util.decodeAudioTrack(audioPlayerManager, track);
+        AudioTrack audioTrack = trackDecodeCache.decode(audioPlayerManager, track);
 
-        return new ResponseEntity<>(trackToJSON(audioTrack).toString(), HttpStatus.OK);
+        return stream(json -> writeTrackInfo(json, audioTrack));
     }
 
     @PostMapping(value = "/decodetracks", consumes = "application/json", produces = "application/json")
     @ResponseBody
-    public ResponseEntity<String> postDecodeTracks(HttpServletRequest request, @RequestBody String body)
+    public ResponseEntity<StreamingResponseBody> postDecodeTracks(HttpServletRequest request, @RequestBody String body)
         throws IOException {
 
         log(request);
 
+        /* decoded before responding, so invalid tracks still fail the whole request */
         JSONArray requestJSON = new JSONArray(body);
-        JSONArray responseJSON = new JSONArray();
-
+        List<AudioTrack> audioTracks = new ArrayList<>(requestJSON.length());
         for (int i = 0; i < requestJSON.length(); i++) {
-            String track = requestJSON.getString(i);
-            AudioTrack audioTrack = Util.decodeAudioTrack(audioPlayerManager, track);
-
-            JSONObject infoJSON = trackToJSON(audioTrack);
-            JSONObject trackJSON = new JSONObject()
-                .put("track", track)
-                .put("info", infoJSON);
-
-            responseJSON.put(trackJSON);
+            audioTracks.add(trackDecodeCache.decode(audioPlayerManager, requestJSON.getString(i)));
         }
 
-        return new ResponseEntity<>(responseJSON.toString(), HttpStatus.OK);
+        return stream(json -> {
+            json.writeStartArray();
+            for (int i = 0; i < audioTracks.size(); i++) {
+                json.writeStartObject();
+                json.writeStringField("track", requestJSON.getString(i));
+                json.writeFieldName("info");
+                writeTrackInfo(json, audioTracks.get(i));
+                json.writeEndObject();
+            }
+            json.writeEndArray();
+        });
+    }
+
+    @FunctionalInterface
+    private interface JsonWriter {
+        void write(JsonGenerator json) throws IOException;
     }
 }
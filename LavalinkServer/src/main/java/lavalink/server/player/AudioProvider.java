@@ -0,0 +1,116 @@
+/*
+ *  Copyright (c) 2021 Freya Arbjerg and contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ *
+ */
+
+package lavalink.server.player;
+
+import com.sedmelluq.discord.lavaplayer.format.StandardAudioDataFormats;
+import com.sedmelluq.discord.lavaplayer.player.AudioPlayer;
+import com.sedmelluq.discord.lavaplayer.track.playback.MutableAudioFrame;
+import io.netty.buffer.ByteBuf;
+import moe.kyokobot.koe.MediaConnection;
+import moe.kyokobot.koe.media.OpusAudioFrameProvider;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Hands the opus frames of a player to Koe.
+ * <p>
+ * Frames are provided into a single reusable buffer and written from there straight into the buffer Koe supplies,
+ * so sending a frame does not allocate.
+ * <p>
+ * Players without a track or which are paused are not polled. Koe sends a few silence frames and stops speaking
+ * whenever no frame is provided, which optionally is also done during silent parts of a track.
+ */
+class AudioProvider extends OpusAudioFrameProvider {
+
+    /* Opus encodes 20ms of digital silence into at most a TOC byte and two bytes of payload */
+    private static final int SILENT_FRAME_MAX_LENGTH = 3;
+
+    /* Silent frames which are still sent, so short pauses do not toggle the speaking state, 500ms of audio */
+    private static final int SILENT_FRAMES_SENT = 25;
+
+    private final AudioPlayer player;
+    private final AudioLossCounter audioLossCounter;
+    private final boolean suppressSilence;
+    private int silentFrames = 0;
+
+    /**
+     * Backs {@link #lastFrame}, the frame data ends at its position.
+     */
+    private final ByteBuffer frameBuffer = ByteBuffer.allocate(StandardAudioDataFormats.DISCORD_OPUS.maximumChunkSize());
+
+    /**
+     * The last frame that was provided by the player.
+     */
+    private final MutableAudioFrame lastFrame = new MutableAudioFrame();
+
+    AudioProvider(MediaConnection connection, AudioPlayer player, AudioLossCounter audioLossCounter,
+                  boolean suppressSilence) {
+        super(connection);
+        this.player = player;
+        this.audioLossCounter = audioLossCounter;
+        this.suppressSilence = suppressSilence;
+
+        lastFrame.setBuffer(frameBuffer);
+    }
+
+    MutableAudioFrame getLastFrame() {
+        return lastFrame;
+    }
+
+    @Override
+    public boolean canProvide() {
+        /* nothing to lose, play and resume take effect on the next poll */
+        if (player.getPlayingTrack() == null || player.isPaused()) {
+            silentFrames = 0;
+            return false;
+        }
+
+        if (!player.provide(lastFrame)) {
+            audioLossCounter.onLoss();
+            return false;
+        }
+
+        if (!suppressSilence || lastFrame.getDataLength() > SILENT_FRAME_MAX_LENGTH) {
+            silentFrames = 0;
+            return true;
+        }
+
+        if (++silentFrames <= SILENT_FRAMES_SENT) {
+            return true;
+        }
+
+        /* the frame was in time, it is just not worth sending */
+        audioLossCounter.onSuccess();
+        return false;
+    }
+
+    @Override
+    public void retrieveOpusFrame(ByteBuf buf) {
+        audioLossCounter.onSuccess();
+
+        /* MutableAudioFrame#getData would copy the frame into a new array first */
+        int length = lastFrame.getDataLength();
+        buf.writeBytes(frameBuffer.array(), frameBuffer.position() - length, length);
+    }
+}
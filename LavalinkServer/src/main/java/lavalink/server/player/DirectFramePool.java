@@ -0,0 +1,121 @@
+/*
+ *  Copyright (c) 2021 Freya Arbjerg and contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ *
+ */
+package lavalink.server.player;
+
+import io.prometheus.client.Gauge;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Globally bounded pool of direct memory slabs for {@link OffHeapAudioFrameBuffer}. Slabs are rounded up to whole
+ * blocks and kept for reuse once released, since direct memory is only given back to the OS by the garbage collector.
+ */
+public class DirectFramePool {
+
+    private static final int BLOCK_SIZE = 64 * 1024;
+
+    private static final Gauge bytes = Gauge.build()
+        .name("lavalink_frame_buffer_pool_bytes")
+        .help("Direct memory of the off-heap frame buffer pool, by whether it is in use, reserved in total or the limit")
+        .labelNames("state")
+        .register();
+
+    private final long maxBytes;
+    private final Map<Integer, ArrayDeque<ByteBuffer>> free = new HashMap<>();
+    private long reservedBytes = 0;
+    private long freeBytes = 0;
+
+    public DirectFramePool(long maxBytes) {
+        this.maxBytes = maxBytes;
+        bytes.labels("max").set(maxBytes);
+    }
+
+    /**
+     * @return A cleared slab of at least the given size, or null if the pool limit would be exceeded.
+     */
+    synchronized ByteBuffer acquire(int size) {
+        int capacity = (size + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE;
+
+        ArrayDeque<ByteBuffer> slabs = free.get(capacity);
+        ByteBuffer slab = slabs != null ? slabs.poll() : null;
+        if (slab != null) {
+            freeBytes -= capacity;
+        } else {
+            /* released slabs of other sizes give up their share of the limit */
+            trim(capacity);
+            if (reservedBytes + capacity > maxBytes) {
+                return null;
+            }
+
+            reservedBytes += capacity;
+            slab = ByteBuffer.allocateDirect(capacity);
+        }
+
+        updateMetrics();
+        slab.clear();
+        return slab;
+    }
+
+    synchronized void release(ByteBuffer slab) {
+        free.computeIfAbsent(slab.capacity(), k -> new ArrayDeque<>()).push(slab);
+        freeBytes += slab.capacity();
+        updateMetrics();
+    }
+
+    private void trim(int needed) {
+        Iterator<ArrayDeque<ByteBuffer>> iterator = free.values().iterator();
+        while (reservedBytes + needed > maxBytes && iterator.hasNext()) {
+            ArrayDeque<ByteBuffer> slabs = iterator.next();
+            while (reservedBytes + needed > maxBytes && !slabs.isEmpty()) {
+                int capacity = slabs.pop().capacity();
+                reservedBytes -= capacity;
+                freeBytes -= capacity;
+            }
+
+            if (slabs.isEmpty()) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private void updateMetrics() {
+        bytes.labels("used").set(reservedBytes - freeBytes);
+        bytes.labels("reserved").set(reservedBytes);
+    }
+
+    public synchronized long getUsedBytes() {
+        return reservedBytes - freeBytes;
+    }
+
+    public synchronized long getReservedBytes() {
+        return reservedBytes;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+}
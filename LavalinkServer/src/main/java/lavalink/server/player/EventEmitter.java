@@ -50,13 +50,17 @@ public class EventEmitter extends AudioEventAdapter {
 
     @Override
     public void onTrackStart(AudioPlayer player, AudioTrack track) {
+        if (linkPlayer.consumeSilentStart(track)) {
+            return;
+        }
+
         JSONObject out = new JSONObject();
         out.put("op", "event");
         out.put("type", "TrackStartEvent");
         out.put("guildId", linkPlayer.getGuildId());
 
         try {
-            out.put("track", Util.encodeAudioTrack(audioPlayerManager, track));
+            out.put("track", Util.encodeAudioTrackValue(audioPlayerManager, track));
         } catch (IOException e) {
             out.put("track", JSONObject.NULL);
         }
@@ -66,13 +70,17 @@ public class EventEmitter extends AudioEventAdapter {
 
     @Override
     public void onTrackEnd(AudioPlayer player, AudioTrack track, AudioTrackEndReason endReason) {
+        if (linkPlayer.consumeSilentEnd(track, endReason)) {
+            return;
+        }
+
         JSONObject out = new JSONObject();
         out.put("op", "event");
         out.put("type", "TrackEndEvent");
         out.put("guildId", linkPlayer.getGuildId());
 
         try {
-            out.put("track", Util.encodeAudioTrack(audioPlayerManager, track));
+            out.put("track", Util.encodeAudioTrackValue(audioPlayerManager, track));
         } catch (IOException e) {
             out.put("track", JSONObject.NULL);
         }
@@ -91,7 +99,7 @@ public class EventEmitter extends AudioEventAdapter {
         out.put("guildId", linkPlayer.getGuildId());
 
         try {
-            out.put("track", Util.encodeAudioTrack(audioPlayerManager, track));
+            out.put("track", Util.encodeAudioTrackValue(audioPlayerManager, track));
         } catch (IOException e) {
             out.put("track", JSONObject.NULL);
         }
@@ -111,7 +119,7 @@ public class EventEmitter extends AudioEventAdapter {
         out.put("guildId", linkPlayer.getGuildId());
 
         try {
-            out.put("track", Util.encodeAudioTrack(audioPlayerManager, track));
+            out.put("track", Util.encodeAudioTrackValue(audioPlayerManager, track));
         } catch (IOException e) {
             out.put("track", JSONObject.NULL);
         }
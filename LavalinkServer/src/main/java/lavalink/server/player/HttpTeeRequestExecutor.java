@@ -0,0 +1,211 @@
+/*
+ *  Copyright (c) 2021 Freya Arbjerg and contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ *
+ */
+
+package lavalink.server.player;
+
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import org.apache.http.Header;
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpCoreContext;
+import org.apache.http.protocol.HttpRequestExecutor;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lets concurrent requests for the same media share one download.
+ * <p>
+ * The first request for a URL and range downloads the response body into a {@link SharedDownload}. Requests for
+ * the same URL and range made while that download is still being read get a copy of the response which reads from
+ * the shared buffer, without anything being sent upstream. Only audio and video responses with a known length of
+ * at most {@code maxBytes} are shared.
+ * <p>
+ * Shared downloads hold at most {@code maxTotalBytes} in memory together and are read by at most
+ * {@code maxDownloaders} threads. Past either limit responses are streamed directly, like without this executor.
+ */
+public class HttpTeeRequestExecutor extends HttpRequestExecutor {
+
+    private static final Counter requests = Counter.build()
+        .name("lavalink_http_tee_requests_total")
+        .help("Media requests, by whether they joined a shared download (hit), started one (miss), were not " +
+            "shareable (bypass) or were not shared because the memory or thread limit was reached (full)")
+        .labelNames("result")
+        .register();
+
+    private static final Gauge bufferedBytes = Gauge.build()
+        .name("lavalink_http_tee_buffered_bytes")
+        .help("Bytes reserved in memory by shared downloads")
+        .register();
+
+    private static final AtomicInteger threadCounter = new AtomicInteger();
+
+    private final long maxBytes;
+    private final long maxTotalBytes;
+    private final Semaphore downloaderSlots;
+    private final AtomicLong reservedBytes = new AtomicLong();
+    private final ConcurrentHashMap<String, SharedDownload> downloads = new ConcurrentHashMap<>();
+
+    /* bounded by the downloader slots */
+    private final ExecutorService downloaders = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "lavalink-http-tee-" + threadCounter.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public HttpTeeRequestExecutor(long maxBytes, long maxTotalBytes, int maxDownloaders) {
+        this.maxBytes = maxBytes;
+        this.maxTotalBytes = maxTotalBytes;
+        this.downloaderSlots = new Semaphore(Math.max(1, maxDownloaders));
+    }
+
+    @Override
+    public HttpResponse execute(HttpRequest request, HttpClientConnection conn, HttpContext context)
+        throws IOException, HttpException {
+
+        if (!"GET".equals(request.getRequestLine().getMethod())) {
+            return super.execute(request, conn, context);
+        }
+
+        String key = keyOf(request, context);
+        SharedDownload existing = downloads.get(key);
+        if (existing != null && existing.join()) {
+            requests.labels("hit").inc();
+            return respond(existing, existing.getTemplate(), false);
+        }
+
+        HttpResponse response = super.execute(request, conn, context);
+        if (!isShareable(response)) {
+            requests.labels("bypass").inc();
+            return response;
+        }
+
+        long length = response.getEntity().getContentLength();
+        if (!reserve(length)) {
+            requests.labels("full").inc();
+            return response;
+        }
+
+        SharedDownload download = new SharedDownload(key, response, conn, d -> {
+            downloads.remove(d.getKey(), d);
+            unreserve(length);
+        });
+
+        if (downloads.putIfAbsent(key, download) != null) {
+            /* another download of this key started in the meantime, so this response is simply not shared */
+            requests.labels("bypass").inc();
+            unreserve(length);
+            downloaderSlots.release();
+            return response;
+        }
+
+        requests.labels("miss").inc();
+        downloaders.execute(() -> {
+            try {
+                download.download();
+            } finally {
+                downloaderSlots.release();
+            }
+        });
+
+        return respond(download, response, true);
+    }
+
+    /**
+     * Reserves memory for a download of the given length and a thread to download it with.
+     */
+    private boolean reserve(long length) {
+        if (!downloaderSlots.tryAcquire()) {
+            return false;
+        }
+
+        if (reservedBytes.addAndGet(length) > maxTotalBytes) {
+            reservedBytes.addAndGet(-length);
+            downloaderSlots.release();
+            return false;
+        }
+
+        bufferedBytes.inc(length);
+        return true;
+    }
+
+    /**
+     * Gives back the memory of a download, its thread is given back once the download is done.
+     */
+    private void unreserve(long length) {
+        reservedBytes.addAndGet(-length);
+        bufferedBytes.dec(length);
+    }
+
+    private String keyOf(HttpRequest request, HttpContext context) {
+        String uri = request.getRequestLine().getUri();
+        if (uri.startsWith("/")) {
+            uri = HttpCoreContext.adapt(context).getTargetHost().toURI() + uri;
+        }
+
+        Header range = request.getFirstHeader("Range");
+        return range == null ? uri : uri + "#" + range.getValue();
+    }
+
+    private boolean isShareable(HttpResponse response) {
+        int status = response.getStatusLine().getStatusCode();
+        HttpEntity entity = response.getEntity();
+        if ((status != 200 && status != 206) || entity == null || entity.getContentType() == null) {
+            return false;
+        }
+
+        long length = entity.getContentLength();
+        String type = entity.getContentType().getValue();
+        return length > 0 && length <= maxBytes && (type.startsWith("audio/") || type.startsWith("video/"));
+    }
+
+    /**
+     * Returns the response with its body read from the shared download.
+     */
+    private HttpResponse respond(SharedDownload download, HttpResponse template, boolean leader) {
+        BasicHttpResponse response = new BasicHttpResponse(template.getStatusLine());
+        response.setHeaders(template.getAllHeaders());
+
+        Header contentType = template.getEntity().getContentType();
+        response.setEntity(new InputStreamEntity(
+            download.newReader(leader),
+            download.getContentLength(),
+            contentType != null ? ContentType.parse(contentType.getValue()) : null
+        ));
+
+        return response;
+    }
+}
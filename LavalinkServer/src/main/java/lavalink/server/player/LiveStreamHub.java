@@ -0,0 +1,123 @@
+/*
+ *  Copyright (c) 2021 Freya Arbjerg and contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ *
+ */
+
+package lavalink.server.player;
+
+import com.sedmelluq.discord.lavaplayer.player.AudioPlayerManager;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import lavalink.server.config.ServerConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Lets players of the same live stream share one upstream playback, so a stream is only fetched, decoded and
+ * encoded once no matter how many guilds listen to it.
+ */
+@Component
+public class LiveStreamHub {
+
+    private static final Logger log = LoggerFactory.getLogger(LiveStreamHub.class);
+
+    private static final Gauge streams = Gauge.build()
+        .name("lavalink_shared_streams")
+        .help("Live streams currently played upstream for shared subscribers")
+        .register();
+
+    private static final Counter subscriptions = Counter.build()
+        .name("lavalink_shared_stream_subscriptions_total")
+        .help("Subscriptions to shared live streams, by whether an upstream playback was already running")
+        .labelNames("result")
+        .register();
+
+    private final AudioPlayerManager audioPlayerManager;
+    private final ServerConfig serverConfig;
+    private final ConcurrentHashMap<String, SharedStream> active = new ConcurrentHashMap<>();
+
+    public LiveStreamHub(AudioPlayerManager audioPlayerManager, ServerConfig serverConfig) {
+        this.audioPlayerManager = audioPlayerManager;
+        this.serverConfig = serverConfig;
+    }
+
+    /**
+     * Whether the track can be played through a shared stream by the given player.
+     * Filters and volume are applied per player, so only players without either can share.
+     */
+    public boolean canShare(AudioTrack track, Player player) {
+        return serverConfig.getSharedLiveStreams()
+            && track.getInfo().isStream
+            && !(track instanceof SharedStreamTrack)
+            && (player.getFilters() == null || !player.getFilters().isEnabled())
+            && player.getVolume() == 100;
+    }
+
+    /**
+     * Wraps a live stream track so it reads from the shared upstream playback when played.
+     */
+    public AudioTrack share(AudioTrack track) {
+        return new SharedStreamTrack(track, this);
+    }
+
+    /**
+     * Subscribes to the stream of the track, starting the upstream playback if nobody listens to it yet.
+     */
+    SharedStream subscribe(AudioTrack source) {
+        String key = source.getSourceManager().getSourceName() + ":" +
+            (source.getInfo().uri != null ? source.getInfo().uri : source.getIdentifier());
+
+        while (true) {
+            boolean[] created = {false};
+            SharedStream stream = active.computeIfAbsent(key, k -> {
+                created[0] = true;
+                streams.inc();
+                log.info("Starting shared upstream for {}", k);
+                return new SharedStream(k, source, audioPlayerManager, serverConfig.getSharedLiveStreamBufferFrames());
+            });
+
+            if (stream.acquire()) {
+                subscriptions.labels(created[0] ? "miss" : "hit").inc();
+                return stream;
+            }
+
+            /* the stream ended right before we joined */
+            remove(stream);
+        }
+    }
+
+    void unsubscribe(SharedStream stream) {
+        if (stream.release()) {
+            remove(stream);
+            log.info("Stopped shared upstream for {}", stream.getKey());
+        }
+    }
+
+    private void remove(SharedStream stream) {
+        if (active.remove(stream.getKey(), stream)) {
+            streams.dec();
+        }
+    }
+}
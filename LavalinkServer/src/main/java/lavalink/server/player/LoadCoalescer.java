@@ -0,0 +1,87 @@
+/*
+ *  Copyright (c) 2021 Freya Arbjerg and contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ *
+ */
+package lavalink.server.player;
+
+import io.prometheus.client.Counter;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Lets concurrent loads of the same identifier share one upstream resolution.
+ */
+@Component
+public class LoadCoalescer {
+
+    private static final Counter coalesced = Counter.build()
+        .name("lavalink_load_requests_coalesced_total")
+        .help("Load requests which joined an identical load that was already in flight")
+        .register();
+
+    private final ConcurrentHashMap<String, CompletableFuture<LoadResult>> inFlight = new ConcurrentHashMap<>();
+
+    /**
+     * Joins the load of the identifier in flight, or starts one with the loader if there is none.
+     * The load is no longer joined once its result is available to all waiters.
+     * <p>
+     * A load which finished between the caller's cache lookup and this call is no longer in flight, so the cache is
+     * checked again before starting a new one.
+     *
+     * @param cached Looks up the result in the cache, returning null if it is not cached.
+     */
+    CompletionStage<LoadResult> load(String identifier, Supplier<LoadResult> cached,
+                                     Supplier<CompletionStage<LoadResult>> loader) {
+        CompletableFuture<LoadResult> load = new CompletableFuture<>();
+        CompletableFuture<LoadResult> existing = inFlight.putIfAbsent(identifier, load);
+        if (existing != null) {
+            coalesced.inc();
+            return existing;
+        }
+
+        LoadResult cachedResult = cached.get();
+        if (cachedResult != null) {
+            inFlight.remove(identifier, load);
+            load.complete(cachedResult);
+            return load;
+        }
+
+        try {
+            loader.get().whenComplete((result, throwable) -> {
+                inFlight.remove(identifier, load);
+                if (throwable != null) {
+                    load.completeExceptionally(throwable);
+                } else {
+                    load.complete(result);
+                }
+            });
+        } catch (RuntimeException e) {
+            inFlight.remove(identifier, load);
+            load.completeExceptionally(e);
+        }
+
+        return load;
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ *  Copyright (c) 2021 Freya Arbjerg and contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ *
+ */
+package lavalink.server.player;
+
+import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrackInfo;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import lavalink.server.config.LoadResultCacheConfig;
+import lavalink.server.config.ServerConfig;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Nullable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Least recently used cache of load results by identifier, so popular identifiers are not resolved upstream for
+ * every request. Entries expire after a TTL depending on the type of the result and the source it was loaded from.
+ */
+@Component
+public class LoadResultCache {
+
+    /* Rough size of a track and its info besides the strings */
+    private static final int TRACK_OVERHEAD = 256;
+
+    private static final Counter requests = Counter.build()
+        .name("lavalink_load_result_cache_requests_total")
+        .help("Load requests by whether their result was cached")
+        .labelNames("result")
+        .register();
+
+    private static final Gauge entries = Gauge.build()
+        .name("lavalink_load_result_cache_entries")
+        .help("Load results in the cache")
+        .register();
+
+    private static final Gauge bytes = Gauge.build()
+        .name("lavalink_load_result_cache_bytes")
+        .help("Estimated size of the load results in the cache")
+        .register();
+
+    private final LoadResultCacheConfig config;
+    private final LinkedHashMap<String, Entry> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private long size = 0;
+
+    public LoadResultCache(ServerConfig serverConfig) {
+        this.config = serverConfig.getLoadResultCache();
+    }
+
+    /**
+     * @return The cached result for the identifier, or null if there is none or it expired.
+     */
+    @Nullable
+    LoadResult get(String identifier) {
+        if (!config.getEnabled()) {
+            return null;
+        }
+
+        LoadResult result = peek(identifier);
+        requests.labels(result != null ? "hit" : "miss").inc();
+        return result;
+    }
+
+    /**
+     * Like {@link #get(String)}, but without counting the request.
+     */
+    @Nullable
+    LoadResult peek(String identifier) {
+        if (!config.getEnabled()) {
+            return null;
+        }
+
+        synchronized (cache) {
+            Entry entry = cache.get(identifier);
+            if (entry != null && entry.expiresAt - System.nanoTime() > 0) {
+                return entry.result;
+            }
+
+            if (entry != null) {
+                remove(identifier);
+            }
+        }
+
+        return null;
+    }
+
+    void put(String identifier, LoadResult result) {
+        if (!config.getEnabled()) {
+            return;
+        }
+
+        long ttl = getTtl(result);
+        long entrySize = estimateSize(identifier, result);
+        if (ttl <= 0 || entrySize > config.getMaxBytes()) {
+            return;
+        }
+
+        synchronized (cache) {
+            remove(identifier);
+            cache.put(identifier, new Entry(result, entrySize, System.nanoTime() + TimeUnit.SECONDS.toNanos(ttl)));
+            size += entrySize;
+
+            /* iterates from the least recently used entry */
+            Iterator<Entry> iterator = cache.values().iterator();
+            while ((cache.size() > config.getMaxEntries() || size > config.getMaxBytes()) && iterator.hasNext()) {
+                size -= iterator.next().size;
+                iterator.remove();
+            }
+
+            updateMetrics();
+        }
+    }
+
+    /**
+     * The TTL of a result in seconds, the one of its type capped by the one of its source.
+     */
+    private long getTtl(LoadResult result) {
+        long ttl;
+        switch (result.loadResultType) {
+            case TRACK_LOADED:
+                ttl = config.getTrackTtl();
+                break;
+            case PLAYLIST_LOADED:
+                ttl = config.getPlaylistTtl();
+                break;
+            case SEARCH_RESULT:
+                ttl = config.getSearchTtl();
+                break;
+            case NO_MATCHES:
+                ttl = config.getNoMatchesTtl();
+                break;
+            default:
+                return 0;
+        }
+
+        if (!result.tracks.isEmpty() && result.tracks.get(0).getSourceManager() != null) {
+            Long sourceTtl = config.getSourceTtl().get(result.tracks.get(0).getSourceManager().getSourceName());
+            if (sourceTtl != null) {
+                ttl = Math.min(ttl, sourceTtl);
+            }
+        }
+
+        return ttl;
+    }
+
+    private static long estimateSize(String identifier, LoadResult result) {
+        long size = TRACK_OVERHEAD + 2L * identifier.length();
+        for (AudioTrack track : result.tracks) {
+            AudioTrackInfo info = track.getInfo();
+            size += TRACK_OVERHEAD + 2L * (length(info.title) + length(info.author) + length(info.identifier)
+                + length(info.uri));
+        }
+
+        return size;
+    }
+
+    private static int length(@Nullable String value) {
+        return value == null ? 0 : value.length();
+    }
+
+    private void remove(String identifier) {
+        Entry removed = cache.remove(identifier);
+        if (removed != null) {
+            size -= removed.size;
+            updateMetrics();
+        }
+    }
+
+    private void updateMetrics() {
+        entries.set(cache.size());
+        bytes.set(size);
+    }
+
+    private static class Entry {
+        private final LoadResult result;
+        private final long size;
+        private final long expiresAt;
+
+        private Entry(LoadResult result, long size, long expiresAt) {
+            this.result = result;
+            this.size = size;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,400 @@
+/*
+ *  Copyright (c) 2021 Freya Arbjerg and contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ *
+ */
+package lavalink.server.player;
+
+import com.sedmelluq.discord.lavaplayer.format.AudioDataFormat;
+import com.sedmelluq.discord.lavaplayer.track.playback.AbstractAudioFrameBuffer;
+import com.sedmelluq.discord.lavaplayer.track.playback.AbstractMutableAudioFrame;
+import com.sedmelluq.discord.lavaplayer.track.playback.AudioFrame;
+import com.sedmelluq.discord.lavaplayer.track.playback.AudioFrameRebuilder;
+import com.sedmelluq.discord.lavaplayer.track.playback.ImmutableAudioFrame;
+import com.sedmelluq.discord.lavaplayer.track.playback.MutableAudioFrame;
+import com.sedmelluq.discord.lavaplayer.track.playback.TerminatorAudioFrame;
+
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Frame buffer which keeps the frame data in a slab of direct memory from a {@link DirectFramePool} instead of the
+ * heap. Frames are stored back to back in a fixed ring, only their offsets, lengths and timecodes live on the heap.
+ * <p>
+ * Lavaplayer has no hook for when a frame buffer is done with, so the slab is returned to the pool as soon as the
+ * terminator frame was provided or the buffer is cleared while its track stops. After that the buffer stays empty.
+ * Buffers which are dropped without either happening return their slab once they are garbage collected.
+ */
+public class OffHeapAudioFrameBuffer extends AbstractAudioFrameBuffer {
+
+    private static final Cleaner cleaner = Cleaner.create();
+
+    private final ByteBuffer slab;
+    private final AtomicBoolean stopping;
+    private final int[] offsets;
+    private final int[] lengths;
+    private final int[] volumes;
+    private final long[] timecodes;
+    private final byte[] scratch;
+    private final MutableAudioFrame bridgeFrame = new MutableAudioFrame();
+    private final Cleaner.Cleanable slabRelease;
+    private int firstFrame = 0;
+    private int frameCount = 0;
+    private boolean released = false;
+
+    /**
+     * @param slab Direct memory for the frame data, returned to the pool once this buffer is done with.
+     */
+    OffHeapAudioFrameBuffer(int maximumFrameCount, AudioDataFormat format, AtomicBoolean stopping,
+                            ByteBuffer slab, DirectFramePool pool) {
+        super(format);
+        this.slab = slab;
+        this.stopping = stopping;
+        this.offsets = new int[maximumFrameCount];
+        this.lengths = new int[maximumFrameCount];
+        this.volumes = new int[maximumFrameCount];
+        this.timecodes = new long[maximumFrameCount];
+        this.scratch = new byte[format.maximumChunkSize()];
+        bridgeFrame.setBuffer(ByteBuffer.allocate(format.maximumChunkSize()));
+
+        slabRelease = cleaner.register(this, new SlabRelease(pool, slab));
+    }
+
+    /**
+     * @return The number of frames a buffer of the given duration holds.
+     */
+    static int frameCount(int bufferDuration, AudioDataFormat format) {
+        return bufferDuration / format.frameDuration() + 1;
+    }
+
+    /**
+     * @return The number of bytes of frame data a buffer of the given duration holds.
+     */
+    static int slabSize(int bufferDuration, AudioDataFormat format) {
+        return format.expectedChunkSize() * frameCount(bufferDuration, format);
+    }
+
+    /**
+     * @return The number of frames which can be added, where frames are assumed to be of the expected chunk size.
+     */
+    @Override
+    public int getRemainingCapacity() {
+        synchronized (synchronizer) {
+            if (released) {
+                return 0;
+            }
+
+            int free;
+            if (frameCount == 0) {
+                free = slab.capacity();
+            } else {
+                int head = offsets[firstFrame];
+                int tail = tail();
+                free = head < tail ? Math.max(slab.capacity() - tail, head) : head - tail;
+            }
+
+            return Math.min(offsets.length - frameCount, free / format.expectedChunkSize());
+        }
+    }
+
+    /**
+     * @return The number of frames this buffer holds, where frames are assumed to be of the expected chunk size.
+     */
+    @Override
+    public int getFullCapacity() {
+        return Math.min(offsets.length, slab.capacity() / format.expectedChunkSize());
+    }
+
+    @Override
+    public void consume(AudioFrame frame) throws InterruptedException {
+        // Checked in addition to interrupts, as those may get consumed elsewhere.
+        if (stopping != null && stopping.get()) {
+            throw new InterruptedException();
+        }
+
+        if (frame instanceof AbstractMutableAudioFrame) {
+            throw new IllegalArgumentException("Cannot consume mutable frames");
+        }
+
+        synchronized (synchronizer) {
+            if (locked || released) {
+                return;
+            }
+
+            receivedFrames = true;
+            if (clearOnInsert) {
+                clear();
+                clearOnInsert = false;
+            }
+
+            if (frame.getDataLength() > slab.capacity()) {
+                throw new IllegalArgumentException("Frame of " + frame.getDataLength() + " bytes does not fit the buffer");
+            }
+
+            /* the slab may be released while waiting for space */
+            while (!released && !attemptStore(frame)) {
+                synchronizer.wait();
+            }
+
+            synchronizer.notifyAll();
+        }
+    }
+
+    @Override
+    public AudioFrame provide() {
+        synchronized (synchronizer) {
+            return provide(bridgeFrame) ? unwrapBridgeFrame() : null;
+        }
+    }
+
+    @Override
+    public AudioFrame provide(long timeout, TimeUnit unit) throws TimeoutException, InterruptedException {
+        synchronized (synchronizer) {
+            return provide(bridgeFrame, timeout, unit) ? unwrapBridgeFrame() : null;
+        }
+    }
+
+    @Override
+    public boolean provide(MutableAudioFrame targetFrame) {
+        synchronized (synchronizer) {
+            if (frameCount == 0) {
+                if (terminateOnEmpty) {
+                    popPendingTerminator(targetFrame);
+                    synchronizer.notifyAll();
+                    return true;
+                }
+
+                return false;
+            }
+
+            popFrame(targetFrame);
+            synchronizer.notifyAll();
+            return true;
+        }
+    }
+
+    @Override
+    public boolean provide(MutableAudioFrame targetFrame, long timeout, TimeUnit unit)
+        throws TimeoutException, InterruptedException {
+
+        long currentTime = System.nanoTime();
+        long endTime = currentTime + unit.toNanos(timeout);
+
+        synchronized (synchronizer) {
+            while (frameCount == 0) {
+                if (terminateOnEmpty) {
+                    popPendingTerminator(targetFrame);
+                    synchronizer.notifyAll();
+                    return true;
+                }
+
+                if (currentTime >= endTime) {
+                    throw new TimeoutException();
+                }
+
+                TimeUnit.NANOSECONDS.timedWait(synchronizer, endTime - currentTime);
+                currentTime = System.nanoTime();
+            }
+
+            popFrame(targetFrame);
+            synchronizer.notifyAll();
+            return true;
+        }
+    }
+
+    /**
+     * Seeks clear the buffer too, so the slab is only released when the track is stopping.
+     */
+    @Override
+    public void clear() {
+        synchronized (synchronizer) {
+            frameCount = 0;
+            if (stopping != null && stopping.get()) {
+                release();
+            }
+
+            synchronizer.notifyAll();
+        }
+    }
+
+    /**
+     * Returns the slab to the pool, after which the buffer stays empty. Does nothing if it was already returned.
+     */
+    void release() {
+        synchronized (synchronizer) {
+            if (released) {
+                return;
+            }
+
+            released = true;
+            frameCount = 0;
+            slabRelease.clean();
+            synchronizer.notifyAll();
+        }
+    }
+
+    /**
+     * Rebuilding copies the buffered frames to the heap once, which is fine as it only happens on seeks and filter
+     * changes.
+     */
+    @Override
+    public void rebuild(AudioFrameRebuilder rebuilder) {
+        synchronized (synchronizer) {
+            List<AudioFrame> frames = new ArrayList<>(frameCount);
+            while (frameCount > 0) {
+                popFrame(bridgeFrame);
+                frames.add(rebuilder.rebuild(unwrapBridgeFrame()));
+            }
+
+            for (AudioFrame frame : frames) {
+                if (!attemptStore(frame)) {
+                    break;
+                }
+            }
+
+            synchronizer.notifyAll();
+        }
+    }
+
+    @Override
+    public long getLastInputTimecode() {
+        synchronized (synchronizer) {
+            if (!clearOnInsert && frameCount > 0) {
+                return timecodes[index(firstFrame + frameCount - 1)];
+            }
+
+            return -1;
+        }
+    }
+
+    @Override
+    protected void signalWaiters() {
+        synchronized (synchronizer) {
+            synchronizer.notifyAll();
+        }
+    }
+
+    private boolean attemptStore(AudioFrame frame) {
+        if (frameCount >= offsets.length) {
+            return false;
+        }
+
+        int length = frame.getDataLength();
+        int offset;
+        if (frameCount == 0) {
+            offset = 0;
+        } else {
+            int head = offsets[firstFrame];
+            int tail = tail();
+
+            if (head < tail) {
+                if (slab.capacity() - tail >= length) {
+                    offset = tail;
+                } else if (head >= length) {
+                    offset = 0;
+                } else {
+                    return false;
+                }
+            } else if (head - tail >= length) {
+                offset = tail;
+            } else {
+                return false;
+            }
+        }
+
+        slab.position(offset);
+        slab.put(frame.getData(), 0, length);
+
+        int index = index(firstFrame + frameCount);
+        offsets[index] = offset;
+        lengths[index] = length;
+        volumes[index] = frame.getVolume();
+        timecodes[index] = frame.getTimecode();
+        frameCount++;
+        return true;
+    }
+
+    private void popFrame(MutableAudioFrame targetFrame) {
+        int length = lengths[firstFrame];
+        slab.position(offsets[firstFrame]);
+        slab.get(scratch, 0, length);
+
+        targetFrame.setFormat(format);
+        targetFrame.setTimecode(timecodes[firstFrame]);
+        targetFrame.setVolume(volumes[firstFrame]);
+        targetFrame.setTerminator(false);
+        targetFrame.store(scratch, 0, length);
+
+        firstFrame = index(firstFrame + 1);
+        frameCount--;
+    }
+
+    private void popPendingTerminator(MutableAudioFrame frame) {
+        terminateOnEmpty = false;
+        terminated = true;
+        frame.setTerminator(true);
+
+        /* nothing is added or provided after the terminator */
+        release();
+    }
+
+    private AudioFrame unwrapBridgeFrame() {
+        if (bridgeFrame.isTerminator()) {
+            return TerminatorAudioFrame.INSTANCE;
+        }
+
+        return new ImmutableAudioFrame(
+            bridgeFrame.getTimecode(),
+            bridgeFrame.getData(),
+            bridgeFrame.getVolume(),
+            bridgeFrame.getFormat()
+        );
+    }
+
+    private int tail() {
+        int last = index(firstFrame + frameCount - 1);
+        return offsets[last] + lengths[last];
+    }
+
+    private int index(int index) {
+        return index % offsets.length;
+    }
+
+    /* Must not reference the buffer, or it would never become unreachable. Run at most once by the cleanable. */
+    private static class SlabRelease implements Runnable {
+        private final DirectFramePool pool;
+        private final ByteBuffer slab;
+
+        private SlabRelease(DirectFramePool pool, ByteBuffer slab) {
+            this.pool = pool;
+            this.slab = slab;
+        }
+
+        @Override
+        public void run() {
+            pool.release(slab);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ *  Copyright (c) 2021 Freya Arbjerg and contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ *
+ */
+package lavalink.server.player;
+
+import com.sedmelluq.discord.lavaplayer.format.AudioDataFormat;
+import com.sedmelluq.discord.lavaplayer.track.playback.AudioFrameBuffer;
+import com.sedmelluq.discord.lavaplayer.track.playback.AudioFrameBufferFactory;
+import io.prometheus.client.Counter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Creates {@link OffHeapAudioFrameBuffer}s, falling back to heap buffers while the pool is exhausted.
+ */
+public class OffHeapFrameBufferFactory implements AudioFrameBufferFactory {
+
+    private static final Logger log = LoggerFactory.getLogger(OffHeapFrameBufferFactory.class);
+
+    private static final Counter fallbacks = Counter.build()
+        .name("lavalink_frame_buffer_pool_fallbacks_total")
+        .help("Frame buffers created on the heap because the off-heap frame buffer pool was exhausted")
+        .register();
+
+    private final DirectFramePool pool;
+    private final AudioFrameBufferFactory fallback;
+    private volatile boolean warned = false;
+
+    public OffHeapFrameBufferFactory(DirectFramePool pool, AudioFrameBufferFactory fallback) {
+        this.pool = pool;
+        this.fallback = fallback;
+    }
+
+    @Override
+    public AudioFrameBuffer create(int bufferDuration, AudioDataFormat format, AtomicBoolean stopping) {
+        ByteBuffer slab = pool.acquire(OffHeapAudioFrameBuffer.slabSize(bufferDuration, format));
+        if (slab == null) {
+            if (!warned) {
+                log.warn("The off-heap frame buffer pool of {} bytes is exhausted, creating frame buffers on the heap",
+                    pool.getMaxBytes());
+                warned = true;
+            }
+
+            fallbacks.inc();
+            return fallback.create(bufferDuration, format, stopping);
+        }
+
+        return new OffHeapAudioFrameBuffer(
+            OffHeapAudioFrameBuffer.frameCount(bufferDuration, format),
+            format,
+            stopping,
+            slab,
+            pool
+        );
+    }
+}
@@ -23,24 +23,21 @@
 
 package lavalink.server.player;
 
-import com.sedmelluq.discord.lavaplayer.format.StandardAudioDataFormats;
 import com.sedmelluq.discord.lavaplayer.player.AudioPlayer;
 import com.sedmelluq.discord.lavaplayer.player.AudioPlayerManager;
 import com.sedmelluq.discord.lavaplayer.player.event.AudioEventAdapter;
 import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
 import com.sedmelluq.discord.lavaplayer.track.AudioTrackEndReason;
-import com.sedmelluq.discord.lavaplayer.track.playback.MutableAudioFrame;
-import io.netty.buffer.ByteBuf;
+import com.sedmelluq.discord.lavaplayer.track.TrackMarker;
+import com.sedmelluq.discord.lavaplayer.track.playback.AudioFrameBuffer;
 import lavalink.server.config.ServerConfig;
 import lavalink.server.io.SocketContext;
 import lavalink.server.io.SocketServer;
 import lavalink.server.player.filters.FilterChain;
 import moe.kyokobot.koe.MediaConnection;
-import moe.kyokobot.koe.media.OpusAudioFrameProvider;
 import org.json.JSONObject;
 
 import javax.annotation.Nullable;
-import java.nio.ByteBuffer;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
@@ -52,15 +49,37 @@ public class Player extends AudioEventAdapter {
     private final String guildId;
     private final AudioPlayer player;
     private final AudioLossCounter audioLossCounter = new AudioLossCounter();
+    private final AudioPlayerManager audioPlayerManager;
+
+    /* only tracked when frame buffers adapt per player */
+    private int frameBufferDuration = 0;
+    private volatile AudioFrameBuffer frameBuffer = null;
 
     private ScheduledFuture<?> myFuture = null;
     private FilterChain filters;
 
+    /* the end time marker of the current play request, applied to whatever track ends up playing it */
+    private volatile TrackMarker endMarker = null;
+
+    /* tracks swapped when leaving a shared stream, whose end and start events are not sent to the client */
+    private volatile AudioTrack silentEnd = null;
+    private volatile AudioTrack silentStart = null;
+
+    /* the state last sent to the client, which it extrapolates the position from */
+    private AudioTrack sentTrack = null;
+    private long sentPosition = 0;
+    private long sentTime = 0;
+    private boolean sentPaused = false;
+    private boolean sentConnected = false;
+    /* set when an update may not have reached the client, so the next one is sent in any case */
+    private boolean sentLost = false;
+
     public Player(SocketContext socketContext, String guildId, AudioPlayerManager audioPlayerManager, ServerConfig serverConfig) {
         this.socketContext = socketContext;
         this.serverConfig = serverConfig;
 
         this.guildId = guildId;
+        this.audioPlayerManager = audioPlayerManager;
         this.player = audioPlayerManager.createPlayer();
         this.player.addListener(this);
         this.player.addListener(new EventEmitter(audioPlayerManager, this));
@@ -76,10 +95,61 @@ public class Player extends AudioEventAdapter {
         }
         json.put("time", System.currentTimeMillis());
 
+        AudioFrameBuffer buffer = frameBuffer;
+        if (buffer != null && player.getPlayingTrack() != null) {
+            JSONObject frames = new JSONObject();
+            frames.put("duration", frameBufferDuration);
+            frames.put("buffered", buffer.getFullCapacity() - buffer.getRemainingCapacity());
+            frames.put("capacity", buffer.getFullCapacity());
+            json.put("frameBuffer", frames);
+        }
+
         return json;
     }
 
 
+    /**
+     * Remembers the state that was sent to the client.
+     *
+     * @param state     The state as returned by {@link #getState()}.
+     * @param connected Whether the voice connection was open.
+     */
+    public synchronized void onStateSent(JSONObject state, boolean connected) {
+        sentTrack = player.getPlayingTrack();
+        sentPosition = state.optLong("position", 0);
+        sentTime = state.getLong("time");
+        sentPaused = player.isPaused();
+        sentConnected = connected;
+        sentLost = false;
+    }
+
+    /**
+     * Forgets the state that was sent to the client, as the update carrying it was dropped before delivery.
+     */
+    public synchronized void onStateLost() {
+        sentLost = true;
+    }
+
+    /**
+     * Whether the state differs from what the client can extrapolate from the last sent state.
+     *
+     * @param connected      Whether the voice connection is open.
+     * @param driftThreshold How far the position may be from the extrapolated one, in milliseconds.
+     */
+    public synchronized boolean hasStateChanged(boolean connected, long driftThreshold) {
+        AudioTrack track = player.getPlayingTrack();
+        if (sentLost || track != sentTrack || player.isPaused() != sentPaused || connected != sentConnected) {
+            return true;
+        }
+
+        if (track == null) {
+            return false;
+        }
+
+        long expected = sentPaused ? sentPosition : sentPosition + System.currentTimeMillis() - sentTime;
+        return Math.abs(track.getPosition() - expected) > driftThreshold;
+    }
+
     public String getGuildId() {
         return guildId;
     }
@@ -131,6 +201,7 @@ public class Player extends AudioEventAdapter {
 
         if (filterChain.isEnabled()) {
             player.setFilterFactory(filterChain);
+            leaveSharedStream();
         } else {
             player.setFilterFactory(null);
         }
@@ -152,6 +223,54 @@ public class Player extends AudioEventAdapter {
      */
     public void setVolume(int volume) {
         player.setVolume(volume);
+        if (volume != 100) {
+            leaveSharedStream();
+        }
+    }
+
+    /**
+     * The volume of this player.
+     */
+    public int getVolume() {
+        return player.getVolume();
+    }
+
+    /**
+     * Shared streams bypass filters and volume, so a player that needs either plays the stream by itself.
+     * To the client this is still the same track, so the swap does not emit any events.
+     */
+    private void leaveSharedStream() {
+        AudioTrack track = player.getPlayingTrack();
+        if (track instanceof SharedStreamTrack) {
+            AudioTrack clone = ((SharedStreamTrack) track).getSource().makeClone();
+            silentEnd = track;
+            silentStart = clone;
+            startTrack(clone);
+        }
+    }
+
+    /**
+     * Whether the end event of the track belongs to a silent swap, which it also completes.
+     */
+    boolean consumeSilentEnd(AudioTrack track, AudioTrackEndReason endReason) {
+        if (endReason != AudioTrackEndReason.REPLACED || track != silentEnd) {
+            return false;
+        }
+
+        silentEnd = null;
+        return true;
+    }
+
+    /**
+     * Whether the start event of the track belongs to a silent swap, which it also completes.
+     */
+    boolean consumeSilentStart(AudioTrack track) {
+        if (track != silentStart) {
+            return false;
+        }
+
+        silentStart = null;
+        return true;
     }
 
 
@@ -161,10 +280,43 @@ public class Player extends AudioEventAdapter {
      * @param track The track to play.
      */
     public void play(AudioTrack track) {
-        player.playTrack(track);
+        play(track, null);
+    }
+
+    /**
+     * Plays an audio track, stopping it once the end marker is reached.
+     *
+     * @param track     The track to play.
+     * @param endMarker The marker to stop at, or null to play the track until it ends.
+     */
+    public void play(AudioTrack track, @Nullable TrackMarker endMarker) {
+        this.endMarker = endMarker;
+
+        LiveStreamHub liveStreamHub = socketContext.getLiveStreamHub();
+        if (liveStreamHub.canShare(track, this)) {
+            track = liveStreamHub.share(track);
+        }
+
+        startTrack(track);
         SocketServer.Companion.sendPlayerUpdate(socketContext, this);
     }
 
+    private void startTrack(AudioTrack track) {
+        TrackMarker marker = endMarker;
+        if (marker != null) {
+            track.setMarker(marker);
+        }
+
+        if (audioPlayerManager.getConfiguration().getFrameBufferFactory() instanceof AdaptiveFrameBufferFactory) {
+            AdaptiveFrameBufferFactory factory =
+                (AdaptiveFrameBufferFactory) audioPlayerManager.getConfiguration().getFrameBufferFactory();
+            frameBufferDuration = factory.nextDuration(frameBufferDuration, track, audioLossCounter);
+            frameBuffer = factory.create(frameBufferDuration, () -> player.playTrack(track));
+        } else {
+            player.playTrack(track);
+        }
+    }
+
     /**
      * Stops the currently playing track.
      */
@@ -202,54 +354,38 @@ public class Player extends AudioEventAdapter {
 
     @Override
     public void onTrackEnd(AudioPlayer player, AudioTrack track, AudioTrackEndReason endReason) {
-        myFuture.cancel(false);
+        if (myFuture != null) {
+            myFuture.cancel(false);
+        }
     }
 
     @Override
     public void onTrackStart(AudioPlayer player, AudioTrack track) {
+        /* updates are sent for the whole session at once */
+        if (serverConfig.getPlayerUpdateBatching()) {
+            return;
+        }
+
         if (myFuture == null || myFuture.isCancelled()) {
-            myFuture = socketContext.getPlayerUpdateService().scheduleAtFixedRate(() -> {
+            myFuture = socketContext.getScheduler().scheduleAtFixedRate(() -> {
+                /* throwing cancels the task, the session will not send anything anymore */
+                if (socketContext.getClosed()) {
+                    throw new IllegalStateException("Session was closed");
+                }
+
                 if (socketContext.getSessionPaused()) {
                     return;
                 }
 
-                SocketServer.Companion.sendPlayerUpdate(socketContext, this);
+                SocketServer.Companion.sendPeriodicPlayerUpdate(socketContext, this);
             }, 0, this.getInterval(), TimeUnit.SECONDS);
         }
     }
 
     public void provideTo(MediaConnection connection) {
-        connection.setAudioSender(new Provider(connection));
-    }
-
-    private class Provider extends OpusAudioFrameProvider {
-        /**
-         * The last frame that was sent.
-         */
-        private final MutableAudioFrame lastFrame = new MutableAudioFrame();
-
-        public Provider(MediaConnection connection) {
-            super(connection);
-
-            ByteBuffer frameBuffer = ByteBuffer.allocate(StandardAudioDataFormats.DISCORD_OPUS.maximumChunkSize());
-            lastFrame.setBuffer(frameBuffer);
-        }
-
-        @Override
-        public boolean canProvide() {
-            var sent = player.provide(lastFrame);
-            if (!sent) {
-                audioLossCounter.onLoss();
-            }
-
-            return sent;
-        }
-
-        @Override
-        public void retrieveOpusFrame(ByteBuf buf) {
-            audioLossCounter.onSuccess();
-            buf.writeBytes(lastFrame.getData());
-        }
+        connection.setAudioSender(
+            new AudioProvider(connection, player, audioLossCounter, serverConfig.getSilenceSuppression())
+        );
     }
 
 }
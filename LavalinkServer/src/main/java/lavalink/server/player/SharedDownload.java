@@ -0,0 +1,305 @@
+/*
+ *  Copyright (c) 2021 Freya Arbjerg and contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ *
+ */
+
+package lavalink.server.player;
+
+import io.prometheus.client.Counter;
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * A response body which is downloaded once into memory and read by any number of readers, each with its own position.
+ * <p>
+ * The body is downloaded eagerly by {@link #download()}, which the owner runs on a separate thread. The download is reference counted: once the last reader
+ * closes it is released, and if it is still in progress the upstream connection is shut down.
+ */
+class SharedDownload {
+
+    private static final Logger log = LoggerFactory.getLogger(SharedDownload.class);
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    /* How long the first reader waits for the download to finish when closing while others still read it */
+    private static final long LEADER_CLOSE_TIMEOUT = TimeUnit.SECONDS.toMillis(30);
+
+    private static final Counter savedBytes = Counter.build()
+        .name("lavalink_http_tee_saved_bytes_total")
+        .help("Bytes served from shared downloads to readers which joined them instead of downloading again")
+        .register();
+
+    private final String key;
+    private final HttpResponse template;
+    private final HttpClientConnection connection;
+    private final Consumer<SharedDownload> onReleased;
+    private final long contentLength;
+    private final byte[][] chunks;
+
+    private long size = 0;
+    private boolean complete = false;
+    private boolean aborted = false;
+    private boolean joinable = true;
+    private IOException failure = null;
+    private int readers = 1;
+
+    SharedDownload(String key, HttpResponse response, HttpClientConnection connection, Consumer<SharedDownload> onReleased) {
+        this.key = key;
+        this.template = response;
+        this.connection = connection;
+        this.onReleased = onReleased;
+        this.contentLength = response.getEntity().getContentLength();
+        this.chunks = new byte[(int) ((contentLength + CHUNK_SIZE - 1) / CHUNK_SIZE)][];
+    }
+
+    String getKey() {
+        return key;
+    }
+
+    /**
+     * The response the download was started from, its body must not be read.
+     */
+    HttpResponse getTemplate() {
+        return template;
+    }
+
+    long getContentLength() {
+        return contentLength;
+    }
+
+    /**
+     * Adds a reader, returning false if the download can no longer be joined.
+     */
+    synchronized boolean join() {
+        if (!joinable || aborted || failure != null) {
+            return false;
+        }
+
+        readers++;
+        return true;
+    }
+
+    /**
+     * @param leader Whether this is the reader of the request which started the download. It holds the connection
+     *               the body is downloaded from, so its stream must not close while the download is still needed.
+     */
+    InputStream newReader(boolean leader) {
+        return new Reader(leader);
+    }
+
+    /**
+     * Downloads the body, returning once it is complete, failed or was aborted.
+     */
+    void download() {
+        try (InputStream upstream = template.getEntity().getContent()) {
+            long position = 0;
+            while (position < contentLength) {
+                synchronized (this) {
+                    if (aborted) {
+                        return;
+                    }
+                }
+
+                int index = (int) (position / CHUNK_SIZE);
+                int offset = (int) (position % CHUNK_SIZE);
+                if (chunks[index] == null) {
+                    chunks[index] = new byte[(int) Math.min(CHUNK_SIZE, contentLength - (long) index * CHUNK_SIZE)];
+                }
+
+                int read = upstream.read(chunks[index], offset, chunks[index].length - offset);
+                if (read < 0) {
+                    throw new EOFException("Response ended after " + position + " of " + contentLength + " bytes");
+                }
+
+                position += read;
+                synchronized (this) {
+                    size = position;
+                    notifyAll();
+                }
+            }
+
+            synchronized (this) {
+                complete = true;
+                notifyAll();
+            }
+        } catch (IOException e) {
+            synchronized (this) {
+                if (!aborted) {
+                    log.warn("Shared download of {} failed", key, e);
+                }
+
+                failure = e;
+                notifyAll();
+            }
+
+            shutdownConnection();
+        }
+    }
+
+    private synchronized int read(long position, byte[] buffer, int offset, int length) throws IOException {
+        try {
+            while (position >= size && !complete && failure == null && !aborted) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+
+        if (position < size) {
+            int index = (int) (position / CHUNK_SIZE);
+            int chunkOffset = (int) (position % CHUNK_SIZE);
+            int count = (int) Math.min(length, Math.min(size - position, chunks[index].length - chunkOffset));
+            System.arraycopy(chunks[index], chunkOffset, buffer, offset, count);
+            return count;
+        }
+
+        if (failure != null) {
+            throw new IOException("Shared download failed", failure);
+        }
+
+        if (aborted) {
+            throw new IOException("Shared download was aborted");
+        }
+
+        return -1;
+    }
+
+    private void release(boolean leader) {
+        boolean last;
+        synchronized (this) {
+            last = --readers == 0;
+            if (last) {
+                joinable = false;
+            }
+        }
+
+        if (last) {
+            onReleased.accept(this);
+            abortIfIncomplete();
+            return;
+        }
+
+        if (leader && !awaitDownload()) {
+            log.warn("Shared download of {} did not finish in time, aborting it", key);
+            abortIfIncomplete();
+        }
+    }
+
+    private synchronized boolean awaitDownload() {
+        long deadline = System.currentTimeMillis() + LEADER_CLOSE_TIMEOUT;
+        try {
+            long remaining;
+            while (!complete && failure == null && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                wait(remaining);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        return complete || failure != null;
+    }
+
+    private void abortIfIncomplete() {
+        synchronized (this) {
+            if (complete || failure != null) {
+                return;
+            }
+
+            aborted = true;
+            notifyAll();
+        }
+
+        shutdownConnection();
+    }
+
+    /**
+     * The connection can't be reused with a partially read body.
+     */
+    private void shutdownConnection() {
+        try {
+            connection.shutdown();
+        } catch (IOException e) {
+            log.debug("Failed to shut down connection of {}", key, e);
+        }
+    }
+
+    private class Reader extends InputStream {
+        private final boolean leader;
+        private long position = 0;
+        private boolean closed = false;
+
+        Reader(boolean leader) {
+            this.leader = leader;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+
+            if (length == 0) {
+                return 0;
+            }
+
+            int read = SharedDownload.this.read(position, buffer, offset, length);
+            if (read > 0) {
+                position += read;
+                if (!leader) {
+                    savedBytes.inc(read);
+                }
+            }
+
+            return read;
+        }
+
+        @Override
+        public int available() {
+            synchronized (SharedDownload.this) {
+                return (int) Math.max(0, Math.min(Integer.MAX_VALUE, size - position));
+            }
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                release(leader);
+            }
+        }
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ *  Copyright (c) 2021 Freya Arbjerg and contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ *
+ */
+
+package lavalink.server.player;
+
+import com.sedmelluq.discord.lavaplayer.player.AudioPlayer;
+import com.sedmelluq.discord.lavaplayer.player.AudioPlayerManager;
+import com.sedmelluq.discord.lavaplayer.player.event.AudioEventAdapter;
+import com.sedmelluq.discord.lavaplayer.tools.FriendlyException;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrackEndReason;
+import com.sedmelluq.discord.lavaplayer.track.playback.AudioFrame;
+import com.sedmelluq.discord.lavaplayer.track.playback.ImmutableAudioFrame;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * One upstream playback of a live stream, whose opus frames are read by any number of subscribers.
+ * <p>
+ * Frames are kept in a ring buffer. Every subscriber reads with its own cursor, and a subscriber which falls more
+ * than the capacity behind skips ahead to the oldest frame still buffered. When the upstream playback fails, the
+ * failure is kept so every subscriber can end its track with it.
+ */
+class SharedStream extends AudioEventAdapter {
+
+    private static final Logger log = LoggerFactory.getLogger(SharedStream.class);
+
+    private final String key;
+    private final AudioPlayer upstream;
+    private final AudioFrame[] ring;
+    private final Thread pump;
+
+    private long written = 0;
+    private boolean ended = false;
+    private FriendlyException failure = null;
+    private int subscribers = 0;
+
+    SharedStream(String key, AudioTrack source, AudioPlayerManager audioPlayerManager, int capacity) {
+        this.key = key;
+        this.ring = new AudioFrame[capacity];
+        this.upstream = audioPlayerManager.createPlayer();
+        this.upstream.addListener(this);
+        this.upstream.playTrack(source.makeClone());
+
+        this.pump = new Thread(this::pump, "lavalink-shared-stream");
+        this.pump.setDaemon(true);
+        this.pump.start();
+    }
+
+    String getKey() {
+        return key;
+    }
+
+    /**
+     * Adds a subscriber, returning false if the stream already ended and can't be joined.
+     */
+    synchronized boolean acquire() {
+        if (ended) {
+            return false;
+        }
+
+        subscribers++;
+        return true;
+    }
+
+    /**
+     * Removes a subscriber.
+     *
+     * @return true if this was the last one, in which case the upstream playback is stopped.
+     */
+    synchronized boolean release() {
+        if (--subscribers > 0) {
+            return false;
+        }
+
+        end();
+        return true;
+    }
+
+    synchronized int getSubscribers() {
+        return subscribers;
+    }
+
+    /**
+     * The sequence number new subscribers start reading at, which is the next frame to be written.
+     */
+    synchronized long head() {
+        return written;
+    }
+
+    /**
+     * Waits for the frame with the given sequence number.
+     *
+     * @return The frame, or null if the stream ended.
+     */
+    synchronized AudioFrame read(long sequence) throws InterruptedException {
+        while (sequence >= written && !ended) {
+            wait();
+        }
+
+        if (sequence >= written) {
+            return null;
+        }
+
+        return ring[(int) (Math.max(sequence, written - ring.length) % ring.length)];
+    }
+
+    /**
+     * Why the upstream playback failed, or null if it did not fail.
+     */
+    synchronized FriendlyException getFailure() {
+        return failure;
+    }
+
+    /**
+     * The sequence number to read after the given one, skipping frames which were already overwritten.
+     */
+    synchronized long next(long sequence) {
+        return Math.max(sequence, written - ring.length) + 1;
+    }
+
+    private void pump() {
+        try {
+            while (!isEnded()) {
+                AudioFrame frame;
+                try {
+                    frame = upstream.provide(100, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    continue;
+                }
+
+                if (frame == null) {
+                    continue;
+                }
+
+                /* the non-allocating frame buffer reuses its frame instances */
+                publish(new ImmutableAudioFrame(frame.getTimecode(), frame.getData(), frame.getVolume(), frame.getFormat()));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            log.error("Shared stream {} failed", key, e);
+            fail(new FriendlyException("Shared stream failed", FriendlyException.Severity.FAULT, e));
+        } finally {
+            end();
+        }
+    }
+
+    private synchronized void publish(AudioFrame frame) {
+        ring[(int) (written % ring.length)] = frame;
+        written++;
+        notifyAll();
+    }
+
+    private synchronized boolean isEnded() {
+        return ended;
+    }
+
+    private synchronized void fail(FriendlyException exception) {
+        if (failure == null && !ended) {
+            failure = exception;
+        }
+    }
+
+    private synchronized void end() {
+        if (ended) {
+            return;
+        }
+
+        ended = true;
+        notifyAll();
+        upstream.destroy();
+    }
+
+    @Override
+    public void onTrackException(AudioPlayer player, AudioTrack track, FriendlyException exception) {
+        fail(exception);
+    }
+
+    @Override
+    public void onTrackEnd(AudioPlayer player, AudioTrack track, AudioTrackEndReason endReason) {
+        end();
+    }
+}
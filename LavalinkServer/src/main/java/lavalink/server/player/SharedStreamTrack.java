@@ -0,0 +1,81 @@
+/*
+ *  Copyright (c) 2021 Freya Arbjerg and contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ *
+ */
+
+package lavalink.server.player;
+
+import com.sedmelluq.discord.lavaplayer.tools.FriendlyException;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
+import com.sedmelluq.discord.lavaplayer.track.DelegatedAudioTrack;
+import com.sedmelluq.discord.lavaplayer.track.playback.AudioFrame;
+import com.sedmelluq.discord.lavaplayer.track.playback.LocalAudioTrackExecutor;
+
+/**
+ * A live stream track which plays the frames of a {@link SharedStream} instead of fetching the stream itself.
+ * Frames are handed to the player as they are, so it does not decode or encode anything. If the upstream playback
+ * fails, this track fails with the same exception.
+ */
+public class SharedStreamTrack extends DelegatedAudioTrack {
+
+    private final AudioTrack source;
+    private final LiveStreamHub hub;
+
+    SharedStreamTrack(AudioTrack source, LiveStreamHub hub) {
+        super(source.getInfo());
+        this.source = source;
+        this.hub = hub;
+    }
+
+    /**
+     * The track this shares the stream of.
+     */
+    public AudioTrack getSource() {
+        return source;
+    }
+
+    @Override
+    public void process(LocalAudioTrackExecutor executor) throws Exception {
+        SharedStream stream = hub.subscribe(source);
+        try {
+            executor.executeProcessingLoop(() -> {
+                long sequence = stream.head();
+                AudioFrame frame;
+                while ((frame = stream.read(sequence)) != null) {
+                    executor.getProcessingContext().frameBuffer.consume(frame);
+                    sequence = stream.next(sequence);
+                }
+
+                FriendlyException failure = stream.getFailure();
+                if (failure != null) {
+                    throw failure;
+                }
+            }, null);
+        } finally {
+            hub.unsubscribe(stream);
+        }
+    }
+
+    @Override
+    protected AudioTrack makeShallowClone() {
+        return new SharedStreamTrack(source, hub);
+    }
+}
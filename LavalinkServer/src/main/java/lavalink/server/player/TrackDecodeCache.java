@@ -0,0 +1,111 @@
+/*
+ *  Copyright (c) 2021 Freya Arbjerg and contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ *
+ */
+package lavalink.server.player;
+
+import com.sedmelluq.discord.lavaplayer.player.AudioPlayerManager;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
+import io.prometheus.client.Counter;
+import lavalink.server.config.ServerConfig;
+import lavalink.server.util.Util;
+import org.springframework.stereotype.Component;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Least recently used cache of decoded tracks by their encoded form, as clients send the same popular tracks over
+ * and over. Cached tracks are never played, every decode returns a fresh clone of one.
+ */
+@Component
+public class TrackDecodeCache {
+
+    private static final Counter requests = Counter.build()
+        .name("lavalink_track_decode_cache_requests_total")
+        .help("Track decodes by whether the track was cached")
+        .labelNames("result")
+        .register();
+
+    private final int maxEntries;
+    private final Map<Object, AudioTrack> cache;
+
+    public TrackDecodeCache(ServerConfig serverConfig) {
+        this.maxEntries = serverConfig.getTrackDecodeCacheSize();
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Object, AudioTrack> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Decodes a base64 encoded track.
+     */
+    public AudioTrack decode(AudioPlayerManager audioPlayerManager, String message) {
+        return decode(audioPlayerManager, message, () -> Util.decodeAudioTrack(audioPlayerManager, message));
+    }
+
+    /**
+     * Decodes a binary encoded track. The buffer must not be modified afterwards.
+     */
+    public AudioTrack decode(AudioPlayerManager audioPlayerManager, byte[] buffer) {
+        return decode(audioPlayerManager, ByteBuffer.wrap(buffer),
+            () -> Util.decodeAudioTrack(audioPlayerManager, buffer));
+    }
+
+    private AudioTrack decode(AudioPlayerManager audioPlayerManager, Object key, Supplier<AudioTrack> decoder) {
+        if (maxEntries <= 0) {
+            return decoder.get();
+        }
+
+        AudioTrack cached;
+        synchronized (cache) {
+            cached = cache.get(key);
+        }
+
+        boolean hit = cached != null;
+        if (hit) {
+            requests.labels("hit").inc();
+        } else {
+            requests.labels("miss").inc();
+            cached = decoder.get();
+            synchronized (cache) {
+                cache.put(key, cached);
+            }
+        }
+
+        AudioTrack track = cached.makeClone();
+        if (cached.getPosition() != 0) {
+            track.setPosition(cached.getPosition());
+        }
+
+        /* only tracks which are sent again are worth encoding up front, the others are encoded once they are needed */
+        if (hit) {
+            Util.shareEncodedTrack(audioPlayerManager, cached, track);
+        }
+
+        return track;
+    }
+}
@@ -22,7 +22,6 @@
  */
 package lavalink.server.player.filters
 
-import com.google.gson.Gson
 import com.sedmelluq.discord.lavaplayer.filter.AudioFilter
 import com.sedmelluq.discord.lavaplayer.filter.FloatPcmAudioFilter
 import com.sedmelluq.discord.lavaplayer.filter.PcmFilterFactory
@@ -31,24 +30,18 @@ import com.sedmelluq.discord.lavaplayer.format.AudioDataFormat
 import com.sedmelluq.discord.lavaplayer.track.AudioTrack
 import lavalink.server.player.filters.configs.*
 
-class FilterChain : PcmFilterFactory {
-
-    companion object {
-        private val gson = Gson()
-        fun parse(json: String) =
-            gson.fromJson(json, FilterChain::class.java)!!
-    }
-
-    var volume: Float? = null
-    var equalizer: List<Band>? = null
-    private val karaoke: KaraokeConfig? = null
-    private val timescale: TimescaleConfig? = null
-    private val tremolo: TremoloConfig? = null
-    private val distortion: DistortionConfig? = null
-    private val lowPass: LowPassConfig? = null
-    private val rotation: RotationConfig? = null
-    private val channelMix: ChannelMixConfig? = null
+class FilterChain(
+    var volume: Float? = null,
+    var equalizer: List<Band>? = null,
+    private val karaoke: KaraokeConfig? = null,
+    private val timescale: TimescaleConfig? = null,
+    private val tremolo: TremoloConfig? = null,
+    private val distortion: DistortionConfig? = null,
+    private val lowPass: LowPassConfig? = null,
+    private val rotation: RotationConfig? = null,
+    private val channelMix: ChannelMixConfig? = null,
     private val vibrato: VibratoConfig? = null
+) : PcmFilterFactory {
 
     private fun buildList() = listOfNotNull(
         volume?.let { VolumeConfig(it) },
@@ -27,11 +27,14 @@ import com.github.natanbc.lavadsp.channelmix.ChannelMixPcmAudioFilter
 import com.sedmelluq.discord.lavaplayer.filter.FloatPcmAudioFilter
 import com.sedmelluq.discord.lavaplayer.format.AudioDataFormat
 
+/**
+ * Missing factors are 0 rather than the identity mix, as they always were.
+ */
 class ChannelMixConfig(
-    val leftToRight: Float,
-    val rightToRight: Float,
-    val rightToLeft: Float,
-    val leftToLeft: Float
+    val leftToRight: Float = 0.0f,
+    val rightToRight: Float = 0.0f,
+    val rightToLeft: Float = 0.0f,
+    val leftToLeft: Float = 0.0f
 ) : FilterConfig() {
     override fun build(format: AudioDataFormat, output: FloatPcmAudioFilter): FloatPcmAudioFilter? {
         return ChannelMixPcmAudioFilter(output)
@@ -27,7 +27,7 @@ import com.github.natanbc.lavadsp.lowpass.LowPassPcmAudioFilter
 import com.sedmelluq.discord.lavaplayer.filter.FloatPcmAudioFilter
 import com.sedmelluq.discord.lavaplayer.format.AudioDataFormat
 
-class LowPassConfig(private val smoothing: Float) : FilterConfig() {
+class LowPassConfig(private val smoothing: Float = 0.0f) : FilterConfig() {
     override fun build(format: AudioDataFormat, output: FloatPcmAudioFilter): FloatPcmAudioFilter? = if (isEnabled())
         LowPassPcmAudioFilter(output, format.channelCount)
             .setSmoothing(smoothing)
@@ -27,7 +27,7 @@ import com.github.natanbc.lavadsp.rotation.RotationPcmAudioFilter
 import com.sedmelluq.discord.lavaplayer.filter.FloatPcmAudioFilter
 import com.sedmelluq.discord.lavaplayer.format.AudioDataFormat
 
-class RotationConfig(private val speed: Float) : FilterConfig() {
+class RotationConfig(private val speed: Float = 0.0f) : FilterConfig() {
     override fun build(format: AudioDataFormat, output: FloatPcmAudioFilter): FloatPcmAudioFilter? {
         return RotationPcmAudioFilter(output, format.sampleRate)
             .setRotationSpeed(speed.toDouble())
@@ -28,13 +28,31 @@ import com.sedmelluq.discord.lavaplayer.player.AudioPlayerManager
 import com.sedmelluq.discord.lavaplayer.tools.io.MessageInput
 import com.sedmelluq.discord.lavaplayer.tools.io.MessageOutput
 import com.sedmelluq.discord.lavaplayer.track.AudioTrack
+import io.prometheus.client.Counter
+import lavalink.server.player.SharedStreamTrack
 import org.apache.commons.codec.binary.Base64
+import org.json.JSONObject
+import org.json.JSONString
 import java.io.ByteArrayInputStream
 import java.io.ByteArrayOutputStream
+import java.util.Collections
+import java.util.WeakHashMap
 
 object Util {
     private var TIMESCALE_ENABLED: Boolean? = null
 
+    /*
+     * Shared by all sessions, but the lock is only held to look up or store an entry: tracks are encoded outside of it.
+     * Entries go away with their track, the map holds no more than the tracks which are alive.
+     */
+    private val encodedTracks: MutableMap<AudioTrack, EncodedTrack> = Collections.synchronizedMap(WeakHashMap())
+
+    private val encodings = Counter.build()
+        .name("lavalink_track_encodings_total")
+        .help("Tracks encoded to base64, by whether the encoded form was reused as is, patched or encoded anew")
+        .labelNames("result")
+        .register()
+
     fun isTimescaleLoaded(): Boolean {
         if (TIMESCALE_ENABLED != null) {
             return TIMESCALE_ENABLED!!
@@ -58,24 +76,111 @@ object Util {
      */
     @JvmStatic
     fun decodeAudioTrack(apm: AudioPlayerManager, message: String): AudioTrack {
-        val base64 = Base64.decodeBase64(message)
-      return ByteArrayInputStream(base64) {
+        val buffer = Base64.decodeBase64(message)
+        return ByteArrayInputStream(buffer) {
+            apm.decodeTrack(MessageInput(this)).decodedTrack
+        }
+    }
+
+    /**
+     * Decodes the supplied raw [buffer] into an [AudioTrack].
+     *
+     * @param apm The audio player manager
+     * @param buffer The binary encoded audio track
+     */
+    @JvmStatic
+    fun decodeAudioTrack(apm: AudioPlayerManager, buffer: ByteArray): AudioTrack {
+        return ByteArrayInputStream(buffer) {
             val input = MessageInput(this)
             apm.decodeTrack(input).decodedTrack
         }
     }
 
+    private fun encode(apm: AudioPlayerManager, track: AudioTrack): ByteArray = ByteArrayOutputStream {
+        apm.encodeTrack(MessageOutput(this), track)
+        toByteArray()
+    }
+
     /**
      * Encodes the supplied [AudioTrack] into a base64 string.
      *
+     * Tracks remember the form lavalink encoded them in on a previous call, rather than what the client sent, which may
+     * be of an older version, have trailing bytes or use another base64 alphabet. The position is the last field of
+     * that form and the only one that changes, so it is patched in place instead of encoding the track again.
+     *
      * @param apm The audio player manager.
      * @param track The audio track to encode.
      */
     @JvmStatic
     @Throws(java.io.IOException::class)
-    fun encodeAudioTrack(apm: AudioPlayerManager, track: AudioTrack): String = ByteArrayOutputStream {
-        apm.encodeTrack(MessageOutput(this), track)
-        Base64.encodeBase64String(toByteArray())
+    fun encodeAudioTrack(apm: AudioPlayerManager, track: AudioTrack): String = encodeAudioTrackValue(apm, track).base64
+
+    /**
+     * Encodes the supplied [AudioTrack] like [encodeAudioTrack], into a value to put in outgoing payloads as is.
+     * Binary encodings write it as raw bytes, so the track is not encoded to base64 only to be decoded again.
+     *
+     * @param apm The audio player manager.
+     * @param track The audio track to encode.
+     */
+    @JvmStatic
+    @Throws(java.io.IOException::class)
+    fun encodeAudioTrackValue(apm: AudioPlayerManager, track: AudioTrack): EncodedTrack {
+        /* shared streams are encoded as the track they share */
+        val source = (track as? SharedStreamTrack)?.source ?: track
+        val position = source.position
+        val encoded = encodedTracks[source]
+
+        if (encoded != null && encoded.position == position) {
+            encodings.labels("memoized").inc()
+            return encoded
+        }
+
+        val buffer = if (encoded != null) {
+            encodings.labels("patched").inc()
+            encoded.buffer.copyOf().also { writePosition(it, position) }
+        } else {
+            encodings.labels("encoded").inc()
+            encode(apm, source)
+        }
+
+        return EncodedTrack(buffer, position).also { encodedTracks[source] = it }
+    }
+
+    /**
+     * Lets [clone] reuse the encoded form of [track], encoding [track] first if it never was. The clone must be at the
+     * same position.
+     */
+    @JvmStatic
+    fun shareEncodedTrack(apm: AudioPlayerManager, track: AudioTrack, clone: AudioTrack) {
+        val encoded = encodedTracks[track] ?: try {
+            EncodedTrack(encode(apm, track), track.position).also { encodedTracks[track] = it }
+        } catch (e: java.io.IOException) {
+            /* the clone is encoded once it is needed, failing there if it still can't be */
+            return
+        }
+
+        encodedTracks[clone] = encoded
+    }
+
+    private fun writePosition(buffer: ByteArray, position: Long) {
+        for (i in 0 until 8) {
+            buffer[buffer.size - 1 - i] = (position ushr (8 * i)).toByte()
+        }
+    }
+
+    /**
+     * The encoded form of a track at a position, which can be put in outgoing payloads as is: JSON gets it as a base64
+     * string, binary encodings write the [buffer] as raw bytes. Must not reference the track, which is the weak key it
+     * is stored by, and the buffer must not be modified.
+     */
+    class EncodedTrack internal constructor(val buffer: ByteArray, internal val position: Long) : JSONString {
+        @Volatile
+        private var encoded: String? = null
+
+        val base64: String
+            get() = encoded ?: Base64.encodeBase64String(buffer).also { encoded = it }
+
+        override fun toJSONString(): String = JSONObject.quote(base64)
     }
 
     /**
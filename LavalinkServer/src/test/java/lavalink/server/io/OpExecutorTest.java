@@ -0,0 +1,164 @@
+/*
+ *  Copyright (c) 2021 Freya Arbjerg and contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ */
+
+package lavalink.server.io;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import kotlin.Unit;
+import lavalink.server.config.ServerConfig;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+public class OpExecutorTest {
+
+  private static final int KEYS = 8;
+  private static final int TASKS = 1000;
+
+  private final OpExecutor executor;
+
+  {
+    ServerConfig serverConfig = new ServerConfig();
+    serverConfig.setOpWorkerThreads(4);
+    executor = new OpExecutor(serverConfig);
+  }
+
+  @AfterEach
+  public void shutdown() {
+    executor.shutdown();
+  }
+
+  @Test
+  public void execute_RunsTasksOfAKeyInOrder() throws InterruptedException {
+    List<List<Integer>> executed = new ArrayList<>();
+    for (int key = 0; key < KEYS; key++) {
+      executed.add(Collections.synchronizedList(new ArrayList<>()));
+    }
+
+    CountDownLatch done = new CountDownLatch(KEYS * TASKS);
+    for (int i = 0; i < TASKS; i++) {
+      for (int key = 0; key < KEYS; key++) {
+        int task = i;
+        List<Integer> log = executed.get(key);
+        executor.execute(key, () -> {
+          log.add(task);
+          done.countDown();
+          return Unit.INSTANCE;
+        });
+      }
+    }
+
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+    for (List<Integer> log : executed) {
+      assertEquals(TASKS, log.size());
+      for (int i = 0; i < TASKS; i++) {
+        assertEquals(i, (int) log.get(i));
+      }
+    }
+  }
+
+  @Test
+  public void execute_NeverRunsTasksOfAKeyConcurrently() throws InterruptedException {
+    AtomicInteger running = new AtomicInteger();
+    AtomicBoolean overlapped = new AtomicBoolean();
+    CountDownLatch done = new CountDownLatch(TASKS);
+
+    for (int i = 0; i < TASKS; i++) {
+      executor.execute("guild", () -> {
+        if (running.incrementAndGet() > 1) {
+          overlapped.set(true);
+        }
+
+        Thread.yield();
+        running.decrementAndGet();
+        done.countDown();
+        return Unit.INSTANCE;
+      });
+    }
+
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+    assertFalse(overlapped.get());
+  }
+
+  @Test
+  public void execute_ContinuesAfterFailingTask() throws InterruptedException {
+    CountDownLatch done = new CountDownLatch(1);
+    executor.execute("guild", () -> {
+      throw new IllegalStateException("expected");
+    });
+    executor.execute("guild", () -> {
+      done.countDown();
+      return Unit.INSTANCE;
+    });
+
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void discard_DropsQueuedTasksOfMatchingKeys() throws InterruptedException {
+    CountDownLatch blocking = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    AtomicBoolean discardedRan = new AtomicBoolean();
+    CountDownLatch otherRan = new CountDownLatch(1);
+
+    executor.execute("closed", () -> {
+      blocking.countDown();
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return Unit.INSTANCE;
+    });
+    executor.execute("closed", () -> {
+      discardedRan.set(true);
+      return Unit.INSTANCE;
+    });
+    executor.execute("open", () -> {
+      otherRan.countDown();
+      return Unit.INSTANCE;
+    });
+
+    assertTrue(blocking.await(10, TimeUnit.SECONDS));
+    executor.discard(key -> key.equals("closed"));
+    release.countDown();
+
+    assertTrue(otherRan.await(10, TimeUnit.SECONDS));
+    CountDownLatch after = new CountDownLatch(1);
+    executor.execute("closed", () -> {
+      after.countDown();
+      return Unit.INSTANCE;
+    });
+    assertTrue(after.await(10, TimeUnit.SECONDS));
+    assertFalse(discardedRan.get());
+  }
+}
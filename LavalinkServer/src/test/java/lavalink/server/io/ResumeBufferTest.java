@@ -0,0 +1,153 @@
+/*
+ *  Copyright (c) 2021 Freya Arbjerg and contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ */
+
+package lavalink.server.io;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import lavalink.server.config.ResumeBufferConfig;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+
+public class ResumeBufferTest {
+
+  @TempDir
+  Path spillDirectory;
+
+  private final ResumeBufferConfig config = new ResumeBufferConfig();
+
+  static List<Object> readAll(ResumeBuffer.Backlog backlog) {
+    List<Object> payloads = new ArrayList<>();
+    List<WebSocketMessage<?>> messages;
+    while (!(messages = backlog.read(2)).isEmpty()) {
+      messages.forEach(message -> payloads.add(message.getPayload()));
+    }
+
+    return payloads;
+  }
+
+  private List<Path> spillFiles() throws IOException {
+    try (Stream<Path> files = Files.list(spillDirectory)) {
+      return files.collect(Collectors.toList());
+    }
+  }
+
+  @Test
+  public void add_DropsCoalescableMessages() {
+    ResumeBuffer buffer = new ResumeBuffer(config);
+    buffer.add(new TextMessage("update"), "playerUpdate:1");
+    buffer.add(new TextMessage("event"), null);
+
+    assertEquals(List.of("event"), readAll(buffer.drain()));
+  }
+
+  @Test
+  public void drain_ReadsSpilledMessagesInOrder() throws IOException {
+    config.setMaxBytes(10);
+    config.setSpillToDisk(true);
+    config.setSpillDirectory(spillDirectory.toString());
+
+    ResumeBuffer buffer = new ResumeBuffer(config);
+    buffer.add(new TextMessage("in memory"), null);
+    buffer.add(new TextMessage("spilled"), null);
+    buffer.add(new BinaryMessage(new byte[] {1, 2, 3}), null);
+    buffer.add(new TextMessage("spilled too"), null);
+    assertEquals(4, buffer.size());
+    assertEquals(1, spillFiles().size());
+
+    ResumeBuffer.Backlog backlog = buffer.drain();
+    assertEquals(0, buffer.size());
+
+    List<Object> payloads = readAll(backlog);
+    assertEquals(4, payloads.size());
+    assertEquals("in memory", payloads.get(0));
+    assertEquals("spilled", payloads.get(1));
+    ByteBuffer binary = (ByteBuffer) payloads.get(2);
+    byte[] bytes = new byte[binary.remaining()];
+    binary.get(bytes);
+    assertArrayEquals(new byte[] {1, 2, 3}, bytes);
+    assertEquals("spilled too", payloads.get(3));
+
+    assertTrue(spillFiles().isEmpty());
+  }
+
+  @Test
+  public void add_DropsMessagesPastTheMemoryLimitWithoutSpilling() {
+    config.setMaxBytes(10);
+
+    ResumeBuffer buffer = new ResumeBuffer(config);
+    buffer.add(new TextMessage("in memory"), null);
+    buffer.add(new TextMessage("dropped"), null);
+
+    assertEquals(List.of("in memory"), readAll(buffer.drain()));
+  }
+
+  @Test
+  public void unread_PutsMessagesBackInFront() {
+    ResumeBuffer.Backlog backlog = new ResumeBuffer.Backlog(List.of(
+        new TextMessage("a"), new TextMessage("b"), new TextMessage("c")));
+
+    List<WebSocketMessage<?>> read = backlog.read(2);
+    backlog.unread(read);
+
+    assertEquals(List.of("a", "b", "c"), readAll(backlog));
+  }
+
+  @Test
+  public void restore_KeepsBacklogAheadOfNewMessages() {
+    ResumeBuffer buffer = new ResumeBuffer(config);
+    buffer.restore(new ResumeBuffer.Backlog(List.of(new TextMessage("unsent"))));
+    buffer.add(new TextMessage("event"), null);
+
+    assertEquals(2, buffer.size());
+    assertEquals(List.of("unsent", "event"), readAll(buffer.drain()));
+  }
+
+  @Test
+  public void clear_DeletesSpillFile() throws IOException {
+    config.setMaxBytes(0);
+    config.setSpillToDisk(true);
+    config.setSpillDirectory(spillDirectory.toString());
+
+    ResumeBuffer buffer = new ResumeBuffer(config);
+    buffer.add(new TextMessage("spilled"), null);
+    assertFalse(spillFiles().isEmpty());
+
+    buffer.clear();
+    assertTrue(spillFiles().isEmpty());
+  }
+}
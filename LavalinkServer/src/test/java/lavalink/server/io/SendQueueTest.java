@@ -0,0 +1,160 @@
+/*
+ *  Copyright (c) 2021 Freya Arbjerg and contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ */
+
+package lavalink.server.io;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import kotlin.Unit;
+import lavalink.server.config.SendQueueConfig;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+
+public class SendQueueTest {
+
+  private final SendQueueConfig config = new SendQueueConfig();
+  private final AtomicInteger overflows = new AtomicInteger();
+  private final List<String> droppedKeys = new ArrayList<>();
+
+  {
+    config.setEnabled(true);
+  }
+
+  /* without a channel nothing is written, so everything offered stays queued */
+  private SendQueue newQueue() {
+    return new SendQueue(config, Runnable::run, null, () -> {
+      overflows.incrementAndGet();
+      return Unit.INSTANCE;
+    }, key -> {
+      droppedKeys.add(key);
+      return Unit.INSTANCE;
+    }, () -> null);
+  }
+
+  private static List<Object> payloads(SendQueue queue) {
+    ResumeBuffer.Backlog backlog = queue.clear();
+    List<Object> payloads = new ArrayList<>();
+    List<WebSocketMessage<?>> messages;
+    while (!(messages = backlog.read(32)).isEmpty()) {
+      messages.forEach(message -> payloads.add(message.getPayload()));
+    }
+
+    return payloads;
+  }
+
+  @Test
+  public void offer_KeepsOrder() {
+    SendQueue queue = newQueue();
+    queue.offer(new TextMessage("a"), null);
+    queue.offer(new TextMessage("b"), null);
+    queue.offer(new TextMessage("c"), null);
+
+    assertEquals(List.of("a", "b", "c"), payloads(queue));
+  }
+
+  @Test
+  public void offer_MovesCoalescedMessageToTheBack() {
+    SendQueue queue = newQueue();
+    queue.offer(new TextMessage("update 1"), "playerUpdate:1");
+    queue.offer(new TextMessage("event"), null);
+    queue.offer(new TextMessage("update 2"), "playerUpdate:1");
+
+    assertEquals(List.of("event", "update 2"), payloads(queue));
+  }
+
+  @Test
+  public void offer_DropsReplaceableMessagesWhenFull() {
+    config.setMaxMessages(2);
+    SendQueue queue = newQueue();
+    queue.offer(new TextMessage("stats"), "stats");
+    queue.offer(new TextMessage("event 1"), null);
+    queue.offer(new TextMessage("event 2"), null);
+
+    assertEquals(0, overflows.get());
+    assertEquals(List.of("event 1", "event 2"), payloads(queue));
+  }
+
+  @Test
+  public void offer_DropsReplaceableMessageWhenFullOfEvents() {
+    config.setMaxMessages(1);
+    SendQueue queue = newQueue();
+    queue.offer(new TextMessage("event"), null);
+    queue.offer(new TextMessage("stats"), "stats");
+
+    assertEquals(0, overflows.get());
+    assertEquals(List.of("event"), payloads(queue));
+  }
+
+  @Test
+  public void offer_ReportsReplacedAndDroppedKeys() {
+    config.setMaxMessages(2);
+    SendQueue queue = newQueue();
+    queue.offer(new TextMessage("updates 1"), "playerUpdates");
+    queue.offer(new TextMessage("updates 2"), "playerUpdates");
+    queue.offer(new TextMessage("event 1"), null);
+    queue.offer(new TextMessage("event 2"), null);
+
+    assertEquals(List.of("playerUpdates", "playerUpdates"), droppedKeys);
+    assertEquals(List.of("event 1", "event 2"), payloads(queue));
+  }
+
+  @Test
+  public void offer_OverflowsOnceInsteadOfDroppingEvents() {
+    config.setMaxMessages(2);
+    SendQueue queue = newQueue();
+    queue.offer(new TextMessage("event 1"), null);
+    queue.offer(new TextMessage("event 2"), null);
+    queue.offer(new TextMessage("event 3"), null);
+    queue.offer(new TextMessage("event 4"), null);
+
+    assertEquals(1, overflows.get());
+    assertEquals(List.of("event 1", "event 2", "event 3", "event 4"), payloads(queue));
+  }
+
+  @Test
+  public void clear_ReturnsReplayedBacklogFirst() {
+    SendQueue queue = newQueue();
+    queue.replay(new ResumeBuffer.Backlog(List.of(new TextMessage("replayed"))));
+    queue.offer(new TextMessage("event"), null);
+
+    assertEquals(List.of("replayed", "event"), payloads(queue));
+  }
+
+  @Test
+  public void offer_KeepsEverythingWhenDisabled() {
+    config.setEnabled(false);
+    config.setMaxMessages(1);
+    SendQueue queue = newQueue();
+    queue.offer(new TextMessage("update 1"), "playerUpdate:1");
+    queue.offer(new TextMessage("event"), null);
+    queue.offer(new TextMessage("update 2"), "playerUpdate:1");
+
+    assertEquals(0, overflows.get());
+    assertEquals(List.of(), droppedKeys);
+    assertEquals(List.of("update 1", "event", "update 2"), payloads(queue));
+  }
+}
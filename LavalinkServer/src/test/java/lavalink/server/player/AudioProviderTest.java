@@ -0,0 +1,134 @@
+/*
+ *  Copyright (c) 2021 Freya Arbjerg and contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ */
+
+package lavalink.server.player;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.sedmelluq.discord.lavaplayer.player.AudioPlayer;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
+import com.sedmelluq.discord.lavaplayer.track.playback.MutableAudioFrame;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import java.lang.management.ManagementFactory;
+import moe.kyokobot.koe.MediaConnection;
+import org.junit.jupiter.api.Test;
+
+public class AudioProviderTest {
+
+  private static final int FRAMES = 100_000;
+
+  private final AudioProvider provider =
+      new AudioProvider(mock(MediaConnection.class), mock(AudioPlayer.class), new AudioLossCounter(), false);
+
+  private final byte[] frame = new byte[160];
+
+  {
+    for (int i = 0; i < frame.length; i++) {
+      frame[i] = (byte) i;
+    }
+  }
+
+  @Test
+  public void retrieveOpusFrame_WritesFrame() {
+    ByteBuf buf = Unpooled.directBuffer(frame.length);
+    provider.getLastFrame().store(frame, 0, frame.length);
+    provider.retrieveOpusFrame(buf);
+
+    byte[] written = new byte[buf.readableBytes()];
+    buf.readBytes(written);
+    assertArrayEquals(frame, written);
+    buf.release();
+  }
+
+  @Test
+  public void retrieveOpusFrame_DoesNotAllocate() {
+    com.sun.management.ThreadMXBean threads =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long threadId = Thread.currentThread().getId();
+    ByteBuf buf = Unpooled.directBuffer(frame.length);
+
+    // warm up so the measured loop runs compiled code
+    sendFrames(buf);
+
+    long before = threads.getThreadAllocatedBytes(threadId);
+    sendFrames(buf);
+    long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+    buf.release();
+
+    // a copy per frame would be well over 16 MB
+    assertTrue(allocated < 1024, "Allocated " + allocated + " bytes for " + FRAMES + " frames");
+  }
+
+  @Test
+  public void canProvide_DoesNotPollIdlePlayer() {
+    AudioPlayer player = mock(AudioPlayer.class);
+    AudioLossCounter counter = new AudioLossCounter();
+    AudioProvider idle = new AudioProvider(mock(MediaConnection.class), player, counter, false);
+
+    assertFalse(idle.canProvide());
+    when(player.getPlayingTrack()).thenReturn(mock(AudioTrack.class));
+    when(player.isPaused()).thenReturn(true);
+    assertFalse(idle.canProvide());
+
+    verify(player, never()).provide(any(MutableAudioFrame.class));
+    assertEquals(0, counter.getLastMinuteLoss());
+  }
+
+  @Test
+  public void canProvide_SuppressesSilence() {
+    byte[] silence = {(byte) 0xF8, (byte) 0xFF, (byte) 0xFE};
+    AudioPlayer player = mock(AudioPlayer.class);
+    when(player.getPlayingTrack()).thenReturn(mock(AudioTrack.class));
+    when(player.provide(any(MutableAudioFrame.class))).thenAnswer(invocation -> {
+      invocation.<MutableAudioFrame>getArgument(0).store(silence, 0, silence.length);
+      return true;
+    });
+
+    AudioProvider silent = new AudioProvider(mock(MediaConnection.class), player, new AudioLossCounter(), true);
+    int sent = 0;
+    for (int i = 0; i < 100; i++) {
+      if (silent.canProvide()) {
+        sent++;
+      }
+    }
+
+    assertEquals(25, sent);
+  }
+
+  private void sendFrames(ByteBuf buf) {
+    for (int i = 0; i < FRAMES; i++) {
+      buf.clear();
+      provider.getLastFrame().store(frame, 0, frame.length);
+      provider.retrieveOpusFrame(buf);
+    }
+  }
+}
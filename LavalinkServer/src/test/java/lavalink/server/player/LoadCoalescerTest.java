@@ -0,0 +1,105 @@
+/*
+ *  Copyright (c) 2021 Freya Arbjerg and contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ */
+
+package lavalink.server.player;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+public class LoadCoalescerTest {
+
+  private final LoadCoalescer coalescer = new LoadCoalescer();
+  private final AtomicInteger loads = new AtomicInteger();
+  private final LoadResult result = new LoadResult(ResultStatus.NO_MATCHES, Collections.emptyList(), null, null);
+
+  private CompletionStage<LoadResult> load(String identifier, CompletableFuture<LoadResult> upstream) {
+    return coalescer.load(identifier, () -> null, () -> {
+      loads.incrementAndGet();
+      return upstream;
+    });
+  }
+
+  @Test
+  public void load_JoinsLoadInFlight() throws Exception {
+    CompletableFuture<LoadResult> upstream = new CompletableFuture<>();
+    CompletionStage<LoadResult> first = load("a", upstream);
+    CompletionStage<LoadResult> second = load("a", new CompletableFuture<>());
+    upstream.complete(result);
+
+    assertEquals(1, loads.get());
+    assertSame(result, first.toCompletableFuture().get());
+    assertSame(result, second.toCompletableFuture().get());
+  }
+
+  @Test
+  public void load_StartsNewLoadOnceCompleted() {
+    load("a", CompletableFuture.completedFuture(result));
+    load("a", CompletableFuture.completedFuture(result));
+
+    assertEquals(2, loads.get());
+  }
+
+  @Test
+  public void load_DoesNotJoinOtherIdentifiers() {
+    load("a", new CompletableFuture<>());
+    load("b", new CompletableFuture<>());
+
+    assertEquals(2, loads.get());
+  }
+
+  @Test
+  public void load_UsesResultCachedMeanwhile() throws Exception {
+    CompletionStage<LoadResult> load = coalescer.load("a", () -> result, () -> {
+      loads.incrementAndGet();
+      return new CompletableFuture<>();
+    });
+
+    assertEquals(0, loads.get());
+    assertSame(result, load.toCompletableFuture().get());
+
+    /* the cached result does not stay in flight */
+    load("a", new CompletableFuture<>());
+    assertEquals(1, loads.get());
+  }
+
+  @Test
+  public void load_PropagatesFailures() {
+    CompletableFuture<LoadResult> upstream = new CompletableFuture<>();
+    CompletionStage<LoadResult> load = load("a", upstream);
+    upstream.completeExceptionally(new IllegalStateException("expected"));
+
+    ExecutionException e = assertThrows(ExecutionException.class, () -> load.toCompletableFuture().get());
+    assertTrue(e.getCause() instanceof IllegalStateException);
+    load("a", new CompletableFuture<>());
+    assertEquals(2, loads.get());
+  }
+}
@@ -0,0 +1,122 @@
+/*
+ *  Copyright (c) 2021 Freya Arbjerg and contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ */
+
+package lavalink.server.player;
+
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.sedmelluq.discord.lavaplayer.source.AudioSourceManager;
+import com.sedmelluq.discord.lavaplayer.tools.FriendlyException;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrackInfo;
+import java.util.Collections;
+import java.util.List;
+import lavalink.server.config.LoadResultCacheConfig;
+import lavalink.server.config.ServerConfig;
+import org.junit.jupiter.api.Test;
+
+public class LoadResultCacheTest {
+
+  private final ServerConfig serverConfig = new ServerConfig();
+  private final LoadResultCacheConfig config = serverConfig.getLoadResultCache();
+
+  {
+    config.setEnabled(true);
+  }
+
+  private static LoadResult noMatches() {
+    return new LoadResult(ResultStatus.NO_MATCHES, Collections.emptyList(), null, null);
+  }
+
+  private static LoadResult trackFrom(String source) {
+    AudioSourceManager sourceManager = mock(AudioSourceManager.class);
+    when(sourceManager.getSourceName()).thenReturn(source);
+
+    AudioTrack track = mock(AudioTrack.class);
+    when(track.getInfo()).thenReturn(new AudioTrackInfo("title", "author", 1000, "id", false, "uri"));
+    when(track.getSourceManager()).thenReturn(sourceManager);
+    return new LoadResult(ResultStatus.TRACK_LOADED, List.of(track), null, null);
+  }
+
+  @Test
+  public void get_ReturnsStoredResult() {
+    LoadResultCache cache = new LoadResultCache(serverConfig);
+    LoadResult result = noMatches();
+    cache.put("ytsearch:nothing", result);
+
+    assertSame(result, cache.get("ytsearch:nothing"));
+    assertSame(result, cache.peek("ytsearch:nothing"));
+    assertNull(cache.get("ytsearch:something"));
+  }
+
+  @Test
+  public void get_ReturnsNothingWhenDisabled() {
+    config.setEnabled(false);
+    LoadResultCache cache = new LoadResultCache(serverConfig);
+    cache.put("ytsearch:nothing", noMatches());
+
+    assertNull(cache.get("ytsearch:nothing"));
+  }
+
+  @Test
+  public void put_EvictsLeastRecentlyUsed() {
+    config.setMaxEntries(2);
+    LoadResultCache cache = new LoadResultCache(serverConfig);
+    cache.put("a", noMatches());
+    cache.put("b", noMatches());
+    cache.get("a");
+    cache.put("c", noMatches());
+
+    assertNotNull(cache.get("a"));
+    assertNull(cache.get("b"));
+    assertNotNull(cache.get("c"));
+  }
+
+  @Test
+  public void put_EvictsPastMaxBytes() {
+    config.setMaxBytes(1000);
+    LoadResultCache cache = new LoadResultCache(serverConfig);
+    for (int i = 0; i < 100; i++) {
+      cache.put("identifier " + i, trackFrom("youtube"));
+    }
+
+    assertNull(cache.get("identifier 0"));
+    assertNotNull(cache.get("identifier 99"));
+  }
+
+  @Test
+  public void put_SkipsFailuresAndUncachedSources() {
+    LoadResultCache cache = new LoadResultCache(serverConfig);
+    cache.put("failed", new LoadResult(new FriendlyException("failed", FriendlyException.Severity.COMMON, null)));
+    cache.put("twitch", trackFrom("twitch"));
+    cache.put("youtube", trackFrom("youtube"));
+
+    assertNull(cache.get("failed"));
+    assertNull(cache.get("twitch"));
+    assertNotNull(cache.get("youtube"));
+  }
+}
@@ -0,0 +1,119 @@
+/*
+ *  Copyright (c) 2021 Freya Arbjerg and contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ */
+
+package lavalink.server.player;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.sedmelluq.discord.lavaplayer.format.AudioDataFormat;
+import com.sedmelluq.discord.lavaplayer.format.StandardAudioDataFormats;
+import com.sedmelluq.discord.lavaplayer.track.playback.AllocatingAudioFrameBuffer;
+import com.sedmelluq.discord.lavaplayer.track.playback.AudioFrame;
+import com.sedmelluq.discord.lavaplayer.track.playback.AudioFrameBuffer;
+import com.sedmelluq.discord.lavaplayer.track.playback.ImmutableAudioFrame;
+import com.sedmelluq.discord.lavaplayer.track.playback.TerminatorAudioFrame;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.jupiter.api.Test;
+
+public class OffHeapAudioFrameBufferTest {
+
+  private static final int DURATION = 1000;
+
+  private final AudioDataFormat format = StandardAudioDataFormats.DISCORD_OPUS;
+  private final DirectFramePool pool = new DirectFramePool(1024 * 1024);
+  private final OffHeapFrameBufferFactory factory =
+      new OffHeapFrameBufferFactory(pool, AllocatingAudioFrameBuffer::new);
+  private final AtomicBoolean stopping = new AtomicBoolean();
+
+  private AudioFrameBuffer newBuffer() {
+    AudioFrameBuffer buffer = factory.create(DURATION, format, stopping);
+    assertTrue(buffer instanceof OffHeapAudioFrameBuffer);
+    return buffer;
+  }
+
+  private AudioFrame frame(int size) {
+    return new ImmutableAudioFrame(0, new byte[size], 100, format);
+  }
+
+  @Test
+  public void getFullCapacity_CountsFrames() {
+    assertEquals(OffHeapAudioFrameBuffer.frameCount(DURATION, format), newBuffer().getFullCapacity());
+  }
+
+  @Test
+  public void getRemainingCapacity_CountsFreeFrames() throws InterruptedException {
+    AudioFrameBuffer buffer = newBuffer();
+    assertEquals(buffer.getFullCapacity(), buffer.getRemainingCapacity());
+
+    for (int i = 0; i < 3; i++) {
+      buffer.consume(frame(format.expectedChunkSize()));
+    }
+
+    assertEquals(buffer.getFullCapacity() - 3, buffer.getRemainingCapacity());
+  }
+
+  @Test
+  public void getRemainingCapacity_IsBoundedByFreeBytes() throws InterruptedException {
+    AudioFrameBuffer buffer = newBuffer();
+    long slabSize = pool.getUsedBytes();
+
+    /* frames of the maximum size use up the bytes long before the frame slots */
+    int frames = (int) (slabSize / format.maximumChunkSize());
+    for (int i = 0; i < frames; i++) {
+      buffer.consume(frame(format.maximumChunkSize()));
+    }
+
+    long freeBytes = slabSize - (long) frames * format.maximumChunkSize();
+    assertTrue(buffer.getFullCapacity() - frames > freeBytes / format.expectedChunkSize());
+    assertEquals(freeBytes / format.expectedChunkSize(), buffer.getRemainingCapacity());
+  }
+
+  @Test
+  public void provide_ReleasesSlabWithTerminator() throws InterruptedException {
+    AudioFrameBuffer buffer = newBuffer();
+    buffer.consume(frame(format.expectedChunkSize()));
+    buffer.setTerminateOnEmpty();
+
+    assertEquals(format.expectedChunkSize(), buffer.provide().getDataLength());
+    assertTrue(pool.getUsedBytes() > 0);
+
+    assertSame(TerminatorAudioFrame.INSTANCE, buffer.provide());
+    assertEquals(0, pool.getUsedBytes());
+    assertEquals(0, buffer.getRemainingCapacity());
+  }
+
+  @Test
+  public void clear_ReleasesSlabOnlyWhenStopping() {
+    AudioFrameBuffer buffer = newBuffer();
+
+    buffer.clear();
+    assertTrue(pool.getUsedBytes() > 0);
+
+    stopping.set(true);
+    buffer.clear();
+    buffer.clear();
+    assertEquals(0, pool.getUsedBytes());
+  }
+}
@@ -0,0 +1,143 @@
+/*
+ *  Copyright (c) 2021 Freya Arbjerg and contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ */
+
+package lavalink.server.player;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import io.prometheus.client.CollectorRegistry;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.jupiter.api.Test;
+
+public class SharedDownloadTest {
+
+  /* spans several chunks, with a partial last one */
+  private final byte[] body = new byte[200_000];
+
+  {
+    for (int i = 0; i < body.length; i++) {
+      body[i] = (byte) (i * 31);
+    }
+  }
+
+  private final HttpClientConnection connection = mock(HttpClientConnection.class);
+  private final AtomicInteger released = new AtomicInteger();
+
+  private SharedDownload newDownload() {
+    HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+    response.setEntity(new ByteArrayEntity(body, ContentType.create("audio/mpeg")));
+    return new SharedDownload("key", response, connection, download -> released.incrementAndGet());
+  }
+
+  private static byte[] readAll(InputStream input) throws IOException {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4096];
+    int read;
+    while ((read = input.read(buffer, 0, buffer.length)) >= 0) {
+      output.write(buffer, 0, read);
+    }
+
+    return output.toByteArray();
+  }
+
+  private static double savedBytes() {
+    Double value = CollectorRegistry.defaultRegistry.getSampleValue("lavalink_http_tee_saved_bytes_total");
+    return value != null ? value : 0;
+  }
+
+  @Test
+  public void newReader_ReadsWholeBodyWhileDownloading() throws Exception {
+    SharedDownload download = newDownload();
+    InputStream leader = download.newReader(true);
+    assertTrue(download.join());
+    InputStream follower = download.newReader(false);
+
+    Thread downloader = new Thread(download::download);
+    downloader.start();
+
+    assertArrayEquals(body, readAll(follower));
+    assertArrayEquals(body, readAll(leader));
+    downloader.join();
+  }
+
+  @Test
+  public void newReader_CountsOnlyBytesServedToJoinedReaders() throws IOException {
+    SharedDownload download = newDownload();
+    InputStream leader = download.newReader(true);
+    assertTrue(download.join());
+    InputStream follower = download.newReader(false);
+    download.download();
+
+    double before = savedBytes();
+    readAll(leader);
+    assertEquals(before, savedBytes());
+
+    follower.read(new byte[1000], 0, 1000);
+    assertEquals(before + 1000, savedBytes());
+  }
+
+  @Test
+  public void close_ReleasesOnceLastReaderCloses() throws IOException {
+    SharedDownload download = newDownload();
+    InputStream leader = download.newReader(true);
+    assertTrue(download.join());
+    InputStream follower = download.newReader(false);
+    download.download();
+
+    follower.close();
+    assertEquals(0, released.get());
+
+    leader.close();
+    assertEquals(1, released.get());
+    assertFalse(download.join());
+    verify(connection, never()).shutdown();
+  }
+
+  @Test
+  public void close_AbortsIncompleteDownload() throws IOException {
+    SharedDownload download = newDownload();
+    InputStream leader = download.newReader(true);
+
+    leader.close();
+
+    assertEquals(1, released.get());
+    verify(connection).shutdown();
+    assertThrows(IOException.class, () -> download.newReader(false).read(new byte[1], 0, 1));
+  }
+}
@@ -0,0 +1,137 @@
+/*
+ *  Copyright (c) 2021 Freya Arbjerg and contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ */
+
+package lavalink.server.player;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import com.sedmelluq.discord.lavaplayer.container.MediaContainer;
+import com.sedmelluq.discord.lavaplayer.container.MediaContainerDescriptor;
+import com.sedmelluq.discord.lavaplayer.player.DefaultAudioPlayerManager;
+import com.sedmelluq.discord.lavaplayer.source.http.HttpAudioSourceManager;
+import com.sedmelluq.discord.lavaplayer.source.http.HttpAudioTrack;
+import com.sedmelluq.discord.lavaplayer.tools.io.MessageInput;
+import com.sedmelluq.discord.lavaplayer.tools.io.MessageOutput;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrackInfo;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import lavalink.server.config.ServerConfig;
+import org.apache.commons.codec.binary.Base64;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+public class TrackDecodeCacheTest {
+
+  private final DefaultAudioPlayerManager manager = spy(new DefaultAudioPlayerManager());
+  private final HttpAudioSourceManager sourceManager = new HttpAudioSourceManager();
+  private final ServerConfig serverConfig = new ServerConfig();
+
+  {
+    manager.registerSourceManager(sourceManager);
+    serverConfig.setTrackDecodeCacheSize(2);
+  }
+
+  @AfterEach
+  public void shutdown() {
+    manager.shutdown();
+  }
+
+  private byte[] encode(String uri, long position) throws IOException {
+    AudioTrack track = new HttpAudioTrack(
+        new AudioTrackInfo("title", "author", 180_000, uri, false, uri),
+        new MediaContainerDescriptor(MediaContainer.MP3.probe, null),
+        sourceManager
+    );
+    track.setPosition(position);
+
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    manager.encodeTrack(new MessageOutput(output), track);
+    return output.toByteArray();
+  }
+
+  private void verifyDecodes(int count) throws IOException {
+    verify(manager, times(count)).decodeTrack(any(MessageInput.class));
+  }
+
+  @Test
+  public void decode_ReturnsFreshClonesOfCachedTrack() throws IOException {
+    TrackDecodeCache cache = new TrackDecodeCache(serverConfig);
+    String encoded = Base64.encodeBase64String(encode("https://example.com/a.mp3", 3000));
+
+    AudioTrack first = cache.decode(manager, encoded);
+    first.setPosition(9000);
+    AudioTrack second = cache.decode(manager, encoded);
+
+    verifyDecodes(1);
+    assertNotSame(first, second);
+    assertEquals(3000, second.getPosition());
+    assertEquals("https://example.com/a.mp3", second.getIdentifier());
+  }
+
+  @Test
+  public void decode_CachesBinaryTracksByContent() throws IOException {
+    TrackDecodeCache cache = new TrackDecodeCache(serverConfig);
+
+    cache.decode(manager, encode("https://example.com/a.mp3", 0));
+    cache.decode(manager, encode("https://example.com/a.mp3", 0));
+
+    verifyDecodes(1);
+  }
+
+  @Test
+  public void decode_EvictsLeastRecentlyUsed() throws IOException {
+    TrackDecodeCache cache = new TrackDecodeCache(serverConfig);
+    String a = Base64.encodeBase64String(encode("https://example.com/a.mp3", 0));
+    String b = Base64.encodeBase64String(encode("https://example.com/b.mp3", 0));
+    String c = Base64.encodeBase64String(encode("https://example.com/c.mp3", 0));
+
+    cache.decode(manager, a);
+    cache.decode(manager, b);
+    cache.decode(manager, a);
+    cache.decode(manager, c);
+    verifyDecodes(3);
+
+    cache.decode(manager, a);
+    verifyDecodes(3);
+    cache.decode(manager, b);
+    verifyDecodes(4);
+  }
+
+  @Test
+  public void decode_AlwaysDecodesWhenDisabled() throws IOException {
+    serverConfig.setTrackDecodeCacheSize(0);
+    TrackDecodeCache cache = new TrackDecodeCache(serverConfig);
+    String encoded = Base64.encodeBase64String(encode("https://example.com/a.mp3", 0));
+
+    cache.decode(manager, encoded);
+    cache.decode(manager, encoded);
+
+    verifyDecodes(2);
+  }
+}
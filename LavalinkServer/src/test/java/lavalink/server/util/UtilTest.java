@@ -0,0 +1,126 @@
+/*
+ *  Copyright (c) 2021 Freya Arbjerg and contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ */
+
+package lavalink.server.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+import com.sedmelluq.discord.lavaplayer.container.MediaContainer;
+import com.sedmelluq.discord.lavaplayer.container.MediaContainerDescriptor;
+import com.sedmelluq.discord.lavaplayer.player.DefaultAudioPlayerManager;
+import com.sedmelluq.discord.lavaplayer.source.http.HttpAudioSourceManager;
+import com.sedmelluq.discord.lavaplayer.source.http.HttpAudioTrack;
+import com.sedmelluq.discord.lavaplayer.tools.io.MessageOutput;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrackInfo;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import org.apache.commons.codec.binary.Base64;
+import org.json.JSONObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+public class UtilTest {
+
+  private final DefaultAudioPlayerManager manager = new DefaultAudioPlayerManager();
+  private final HttpAudioSourceManager sourceManager = new HttpAudioSourceManager();
+
+  {
+    manager.registerSourceManager(sourceManager);
+  }
+
+  @AfterEach
+  public void shutdown() {
+    manager.shutdown();
+  }
+
+  private AudioTrack newTrack() {
+    AudioTrackInfo info = new AudioTrackInfo("title", "author", 180_000, "https://example.com/track.mp3", false,
+        "https://example.com/track.mp3");
+    return new HttpAudioTrack(info, new MediaContainerDescriptor(MediaContainer.MP3.probe, null), sourceManager);
+  }
+
+  /* encodes without any memoization */
+  private byte[] encodeDirectly(AudioTrack track) throws IOException {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    manager.encodeTrack(new MessageOutput(output), track);
+    return output.toByteArray();
+  }
+
+  @Test
+  public void encodeAudioTrack_MatchesFullEncoding() throws IOException {
+    AudioTrack track = newTrack();
+
+    assertEquals(Base64.encodeBase64String(encodeDirectly(track)), Util.encodeAudioTrack(manager, track));
+  }
+
+  @Test
+  public void encodeAudioTrack_PatchesPosition() throws IOException {
+    AudioTrack track = newTrack();
+    String encoded = Util.encodeAudioTrack(manager, track);
+
+    track.setPosition(42_000);
+    String patched = Util.encodeAudioTrack(manager, track);
+
+    assertNotEquals(encoded, patched);
+    assertEquals(Base64.encodeBase64String(encodeDirectly(track)), patched);
+    assertEquals(42_000, Util.decodeAudioTrack(manager, patched).getPosition());
+  }
+
+  @Test
+  public void decodeAudioTrack_EncodesCanonicalForm() throws IOException {
+    AudioTrack track = newTrack();
+    track.setPosition(1000);
+    byte[] canonical = encodeDirectly(track);
+
+    /* trailing bytes are ignored when decoding, but must not end up in what is sent back */
+    byte[] padded = Arrays.copyOf(canonical, canonical.length + 16);
+    AudioTrack decoded = Util.decodeAudioTrack(manager, Base64.encodeBase64String(padded));
+    assertEquals(Base64.encodeBase64String(canonical), Util.encodeAudioTrack(manager, decoded));
+
+    decoded.setPosition(5000);
+    assertEquals(5000, Util.decodeAudioTrack(manager, Util.encodeAudioTrack(manager, decoded)).getPosition());
+  }
+
+  @Test
+  public void shareEncodedTrack_PatchesCloneAtOtherPosition() throws IOException {
+    AudioTrack track = Util.decodeAudioTrack(manager, encodeDirectly(newTrack()));
+    AudioTrack clone = track.makeClone();
+    Util.shareEncodedTrack(manager, track, clone);
+
+    clone.setPosition(7000);
+    assertEquals(Base64.encodeBase64String(encodeDirectly(clone)), Util.encodeAudioTrack(manager, clone));
+  }
+
+  @Test
+  public void encodeAudioTrackValue_IsBase64InJson() throws IOException {
+    AudioTrack track = newTrack();
+    Util.EncodedTrack value = Util.encodeAudioTrackValue(manager, track);
+
+    assertEquals(encodeDirectly(track).length, value.getBuffer().length);
+    assertEquals("{\"track\":\"" + Util.encodeAudioTrack(manager, track) + "\"}",
+        new JSONObject().put("track", value).toString());
+  }
+}